@@ -4,9 +4,11 @@ import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @EnableAspectJAutoProxy(exposeProxy = true)//暴露代理对象 一人一单业务中获得事务的代理对象用到了
 @MapperScan("com.hmdp.mapper")
+@EnableScheduling//秒杀预热等定时任务
 @SpringBootApplication
 public class HmDianPingApplication {
 
@@ -1,7 +1,11 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimitRules;
 import com.hmdp.utils.ReFreshInterceptor;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -13,6 +17,15 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    RateLimitRules rateLimitRules;
+    @Resource
+    MeterRegistry meterRegistry;
+    /**
+     * 受信任的反向代理，只有请求直接来自这些地址时才按X-Forwarded-For取客户端ip
+     */
+    @Value("${hmdp.rate-limit.trusted-proxies:}")
+    String[] trustedProxies;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -26,5 +39,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
                 ).order(1);
         registry.addInterceptor(new ReFreshInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        //限流放在登录校验之后，按用户限流时才能拿到用户id
+        registry.addInterceptor(new RateLimitInterceptor(stringRedisTemplate, rateLimitRules, meterRegistry, trustedProxies))
+                .addPathPatterns("/**").order(2);
     }
 }
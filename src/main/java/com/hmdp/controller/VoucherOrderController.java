@@ -3,7 +3,9 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RateLimit;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -22,8 +24,21 @@ import org.springframework.web.bind.annotation.RestController;
 public class VoucherOrderController {
     @Autowired
     private IVoucherOrderService VoucherOrderService;
+    @RateLimit(name = "seckill", type = RateLimit.Type.GLOBAL, permitsPerSecond = 2000, burst = 2000)
+    @RateLimit(name = "seckill:user", type = RateLimit.Type.USER, permitsPerSecond = 1, burst = 3)
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return VoucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单状态：QUEUED 排队中，CREATED 已创建，FAILED 创建失败
+     * @param orderId 秒杀接口返回的订单id
+     * @return 订单状态，只读redis
+     */
+    @RateLimit(name = "seckill:status", type = RateLimit.Type.USER, permitsPerSecond = 2, burst = 5)
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return VoucherOrderService.queryOrderStatus(orderId);
+    }
 }
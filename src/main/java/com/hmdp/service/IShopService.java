@@ -17,4 +17,10 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    Result queryByType(Integer typeId, Integer current);
+
+    Result incrementCounter(Long id, String field, int delta);
 }
@@ -15,9 +15,12 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.aspectj.weaver.ast.Var;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
@@ -27,9 +30,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -48,6 +54,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private IFollowService followService;
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -56,11 +64,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog->{
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 查询用户和是否点赞，整页一起查，redis往返次数与博文数量无关
+        this.queryBlogUser(records);
+        this.isBlogLiked(records);
 
         return Result.ok(records);
     }
@@ -171,12 +177,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         List<Blog> blogs = query()
                 .in("id", ids)
                 .last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Blog blog : blogs) {
-            //5.1查询blog的作者
-            queryBlogUser(blog);
-            //5.2查询blog是否被点赞
-            isBlogLiked(blog);
-        }
+        //5.1查询blog的作者
+        queryBlogUser(blogs);
+        //5.2查询blog是否被点赞
+        isBlogLiked(blogs);
         //5.封装并返回
         ScrollResult r=new ScrollResult();
         r.setList(blogs);
@@ -193,28 +197,46 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.fail("Blog不存在！");
         }
         //2.查询blog有关的用户
-        queryBlogUser(blog);
-        isBlogLiked(blog);
+        queryBlogUser(Collections.singletonList(blog));
+        isBlogLiked(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
+    private void isBlogLiked(List<Blog> blogs) {
         //1.获取登陆用户
         UserDTO user = UserHolder.getUser();
-        if(user==null){
+        if(user==null||blogs.isEmpty()){
             //用户未登陆，无需查询是否点赞
             return;
         }
-        //2.判断当前登陆用户是否已经点赞
-        String key="blog:liked:"+blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, user.getId().toString());
-        blog.setIsLike(score!=null);
+        //2.判断当前登陆用户是否已经点赞，所有博文的ZSCORE放在一个pipeline里
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                stringConnection.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private void queryBlogUser(List<Blog> blogs) {
+        //一次MGET查用户缓存，未命中的用户一次IN查询
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = cacheClient.queryMultiWithPassThrough(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user == null) {
+                continue;
+            }
+            blogs.get(i).setName(user.getNickName());
+            blogs.get(i).setIcon(user.getIcon());
+        }
     }
 }
@@ -1,26 +1,28 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.dto.RedisData;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheBloomFilters;
 import com.hmdp.utils.CacheClient;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.ShopHashCache;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -34,164 +36,53 @@ import static com.hmdp.utils.RedisConstants.*;
  */
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR= Executors.newFixedThreadPool(10);
+    @Resource
+    private CacheBloomFilters cacheBloomFilters;
+    @Resource
+    private ShopHashCache shopHashCache;
+
+    @PostConstruct
+    private void init() {
+        //商铺缓存开启布隆过滤器，启动后用全表id重建
+        cacheBloomFilters.register(CACHE_SHOP_KEY, () -> listObjs(new QueryWrapper<Shop>().select("id")));
+    }
     @Override
     public Result queryById(Long id) {
-//        //解决缓存穿透-----1
-//        Shop shop=queryWithPassThrough(id);
-
-        //互斥锁解决缓存击穿
-//        Shop shop=queryWithMetux(id);
-
-        //逻辑过期解决缓存击穿----1
-//        Shop shop=queryWithLogicalExpire(id);
-
         //解决缓存穿透-----2
 //        Shop shop=cacheClient
 //                .queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
 
         //逻辑过期解决缓存击穿----2
+//        Shop shop=cacheClient
+//                .queryWithLogicalExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+
+        //按字段存储的hash缓存
+        if (shopHashCache.isEnabled()) {
+            Shop shop = shopHashCache.query(id, this::getById);
+            return shop == null ? Result.fail("店铺不存在!") : Result.ok(shop);
+        }
+
+        //软过期+硬过期，同时解决缓存击穿和雪崩，不需要预热
         Shop shop=cacheClient
-                .queryWithLogicalExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+                .queryWithSoftExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,CACHE_SHOP_HARD_TTL,TimeUnit.MINUTES);
         if(shop==null){
             return Result.fail("店铺不存在!互斥锁解决缓存击穿");
         }
         return Result.ok(shop);
     }
 
-    public Shop queryWithLogicalExpire(Long id){
-        //1.在redis中查询商铺信息
-        String shopKey = CACHE_SHOP_KEY + id;
-        String stringShop = stringRedisTemplate.opsForValue().get(shopKey);
-        //2.判断缓存是否命中
-        if(StrUtil.isBlank(stringShop)){
-            //未命中
-            return null;
-        }
-        //命中了
-        //3.判断缓存是否过期
-        RedisData redisData=JSONUtil.toBean(stringShop,RedisData.class);
-        JSONObject jsonShop = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(jsonShop, Shop.class);
-        LocalDateTime expiretime=redisData.getExpireTime();
-        if(expiretime.isAfter(LocalDateTime.now())){
-            //未过期，返回数据
-            return shop;
-        }
-        //4.过期了，缓存重建
-        //4.1获得互斥锁
-        String lockKey=LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        if (isLock) {
-            //开启独立线程获取数据
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    this.saveShop2Redis(id,20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unLock(lockKey);
-                }
-            });
-        }
-        //数据写入redis，无论是否获得了互斥锁，如果获得了互斥锁那么存入的就是新数据，没获得互斥锁存入的就是旧数据
-        stringRedisTemplate.opsForValue().set(shopKey,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL,TimeUnit.MINUTES);
-        //返回
-        return shop;
-    }
-
     /**
-     * 查询店铺信息 （互斥锁版本 解决缓存穿透和缓存击穿，未解决缓存雪崩）
-     * @param id
-     * @return
-     */
-    public Shop queryWithMetux(Long id){
-        //1.查询redis
-        //1.1.查询redis缓存有无商铺信息,之前登陆的时候用过hash了，这里就用string练习
-        String shopKey = CACHE_SHOP_KEY + id;
-        String stringShop = stringRedisTemplate.opsForValue().get(shopKey);
-        //1.2.判断数据是否为空
-        if (StrUtil.isNotBlank(stringShop)) {
-            //1.3.把String变成JSON格式
-            Shop shop = JSONUtil.toBean(stringShop, Shop.class);
-            //1.4返回给前端
-            return shop;
-        }
-        //1.6现在数据要么是null要么是空字符串，判断是不是空字符串的假缓存（字符串比较不能用==）
-        if ("".equals(stringShop)) {
-            return null;
-        }
-
-        //2.没有就查询MySQL数据库
-        //到了这一步就是缓存未命中，要查数据库了，需要保护数据库，防止缓存击穿，获取互斥锁
-        String lockKey=LOCK_SHOP_KEY+id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //如果isLock为false（没获取到锁）
-            if (isLock==false) {
-                //让没有获取到互斥锁的线程休眠，再重复以上所有步骤(包括redis缓存是否命中步骤)
-                Thread.sleep(30);//线程休眠可能有异常，需要try/catch/finally
-                return queryWithMetux(id);
-            }
-            shop = getById(id);
-            //2.1.1数据库没查到数据,返回错误信息
-            if (shop == null) {
-                //2.1.2为了防止缓存穿透，我们返回一个空字符串
-                stringRedisTemplate.opsForValue().set(shopKey,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //2.2.数据库查到了,但是要先存在redis里面，然后返回给前端
-            String stringShop2 = JSONUtil.toJsonStr(shop);
-            //2.3设置超时时间，为线程冲突造成数据不一致兜底
-            stringRedisTemplate.opsForValue().set(shopKey,stringShop2,CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //释放互斥锁
-            unLock(lockKey);
-        }
-        return shop;
-    }
-
-    /**
-     * 查询店铺信息（只解决了缓存穿透的版本，未解决缓存雪崩和缓存击穿）
-     * @param id
-     * @return
+     * 新增店铺，写入数据库后加入布隆过滤器
+     * @param shop
+     * @return 店铺id
      */
-    public Shop queryWithPassThrough(Long id){
-        //1.查询redis
-        //1.1.查询redis缓存有无商铺信息,之前登陆的时候用过hash了，这里就用string练习
-        String shopKey = CACHE_SHOP_KEY + id;
-        String stringShop = stringRedisTemplate.opsForValue().get(shopKey);
-        //1.2.判断数据是否为空
-        if (StrUtil.isNotBlank(stringShop)) {
-            //1.3.把String变成JSON格式
-            Shop shop = JSONUtil.toBean(stringShop, Shop.class);
-            //1.4返回给前端
-            return shop;
-        }
-        //1.6现在数据要么是null要么是空字符串，判断是不是空字符串的假缓存（字符串比较不能用==）
-        if ("".equals(stringShop)) {
-            return null;
-        }
-        //2.没有就查询MySQL数据库
-        Shop shop = getById(id);
-        //2.1.1数据库没查到数据,返回错误信息
-        if (shop == null) {
-            //2.1.2为了防止缓存穿透，我们返回一个空字符串
-            stringRedisTemplate.opsForValue().set(shopKey,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        //2.2.数据库查到了,但是要先存在redis里面，然后返回给前端
-        String stringShop2 = JSONUtil.toJsonStr(shop);
-        //2.3设置超时时间，为线程冲突造成数据不一致兜底
-        stringRedisTemplate.opsForValue().set(shopKey,stringShop2,CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        return shop;
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        cacheBloomFilters.add(CACHE_SHOP_KEY, shop.getId());
+        return Result.ok(shop.getId());
     }
 
     /**
@@ -209,43 +100,76 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺的id不能为空");
         }
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        //删除redis缓存的同时通知所有节点淘汰本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY+id);
+        shopHashCache.delete(id);
         return Result.ok();
     }
 
     /**
-     * 互斥锁（利用redis实现）
-     * @param key
-     * @return
+     * 根据类型分页查询店铺
+     * hash缓存模式下数据库只查这一页的id，店铺字段用pipeline从hash缓存里只取列表需要的字段
      */
-    private boolean tryLock(String key){
-        //利用redis的setnx方法特性，如果存在就不创建
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    @Override
+    public Result queryByType(Integer typeId, Integer current) {
+        if (!shopHashCache.isEnabled()) {
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        //1.只查id
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.ok(ids);
+        }
+        //2.批量查询hash缓存，未命中的一次回源
+        List<Shop> shops = shopHashCache.queryMulti(ids,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                ShopHashCache.LIST_FIELDS);
+        return Result.ok(shops);
     }
 
     /**
-     * 释放锁（直接deleteKey）
-     * @param key
+     * 店铺计数（销量、评论数、评分）增加delta
+     * hash缓存用HINCRBY原地修改，不用淘汰整个店铺；字符串缓存只能删除后重新加载，两者都在事务提交之后执行
      */
-    private void unLock(String key){
-        //利用redis实现
-        stringRedisTemplate.delete(key);
+    @Override
+    @Transactional
+    public Result incrementCounter(Long id, String field, int delta) {
+        if (!ShopHashCache.COUNTER_FIELDS.contains(field)) {
+            return Result.fail("不支持的计数字段：" + field);
+        }
+        //1.先更新数据库，字段名已经校验过，和列名相同
+        boolean isSuccess = update().setSql(field + "=" + field + "+" + delta).eq("id", id).update();
+        if (!isSuccess) {
+            return Result.fail("店铺不存在!");
+        }
+        //2.事务提交之后再更新缓存：回滚时缓存里的计数不会多加；提交之前并发回源读到的是旧值，提交之后的自增会把它补上
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                shopHashCache.increment(id, field, delta);
+                cacheClient.delete(CACHE_SHOP_KEY + id);
+            }
+        });
+        return Result.ok();
     }
 
     /**
-     * redis数据预热（逻辑过期解决缓存击穿）
+     * redis数据预热，软过期时间为expireSeconds
      */
     public void saveShop2Redis(Long id,Long expireSeconds) throws InterruptedException {
         //1.查询数据库
         Shop shop = getById(id);
         //手动给线程加一个延迟，这样我们缓存创建有一定的延迟，延迟越长越容易出现线程安全问题
         Thread.sleep(200);
-        //2.封装逻辑过期的缓存的时间
-        RedisData redisdata=new RedisData();
-        redisdata.setData(shop);
-        redisdata.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.把数据放入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisdata));
+        //2.按CacheClient的缓存格式写入软过期时间和数据，并通知各节点淘汰本地缓存
+        cacheClient.setWithSoftExpire(CACHE_SHOP_KEY+id,shop,expireSeconds,
+                expireSeconds+TimeUnit.MINUTES.toSeconds(CACHE_SHOP_HARD_TTL),TimeUnit.SECONDS);
     }
 }
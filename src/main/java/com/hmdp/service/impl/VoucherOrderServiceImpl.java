@@ -7,28 +7,57 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.TwoTierLockClient;
+import com.hmdp.utils.ILock;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -44,10 +73,29 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Autowired
     private ISeckillVoucherService seckillVoucherService;
+    /**
+     * bean名称 -> id生成器
+     */
     @Autowired
-    private RedisIdWorker redisIdWorker;
+    private Map<String, IIdWorker> idWorkers;
+    @Value("${hmdp.id.worker:redis}")
+    private String idWorkerName;
+    private IIdWorker idWorker;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private TwoTierLockClient twoTierLockClient;
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong oldestPendingAgeMs = new AtomicLong();
+    private final AtomicLong dlqDepth = new AtomicLong();
+    private Counter recoveredCounter;
+    private Counter deadLetterCounter;
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static{
         SECKILL_SCRIPT=new DefaultRedisScript<Long>();
@@ -56,68 +104,237 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR= Executors.newSingleThreadExecutor();
-    //给线程一个任务，runnable
+    /**
+     * 秒杀脚本返回值 -> 提示信息
+     */
+    private static final Map<Integer, String> SECKILL_FAIL_MESSAGES = new HashMap<>();
+    static{
+        SECKILL_FAIL_MESSAGES.put(1,"库存不足");
+        SECKILL_FAIL_MESSAGES.put(2,"不能重复下单");
+        SECKILL_FAIL_MESSAGES.put(4,"秒杀尚未开始！");
+        SECKILL_FAIL_MESSAGES.put(5,"秒杀已经结束！");
+    }
+    private static final DefaultRedisScript<Long> CREATE_GROUP_SCRIPT;
+    private static final DefaultRedisScript<Long> PARTITION_LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> DEAD_LETTER_SCRIPT;
+    static{
+        DEAD_LETTER_SCRIPT=new DefaultRedisScript<Long>();
+        DEAD_LETTER_SCRIPT.setLocation(new ClassPathResource("deadLetter.lua"));
+        DEAD_LETTER_SCRIPT.setResultType(Long.class);
+        CREATE_GROUP_SCRIPT=new DefaultRedisScript<Long>();
+        CREATE_GROUP_SCRIPT.setLocation(new ClassPathResource("createGroup.lua"));
+        CREATE_GROUP_SCRIPT.setResultType(Long.class);
+        PARTITION_LEASE_SCRIPT=new DefaultRedisScript<Long>();
+        PARTITION_LEASE_SCRIPT.setLocation(new ClassPathResource("partitionLease.lua"));
+        PARTITION_LEASE_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT=new DefaultRedisScript<Long>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unLock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 每个节点的消费者线程池，线程数等于consumers
+     */
+    private ExecutorService seckillOrderExecutor;
+    private ScheduledExecutorService pendingRecoveryScheduler;
+    private ExecutorService pendingRecoveryExecutor;
+    private volatile boolean running = true;
+    /**
+     * 每次XREADGROUP最多读取的订单数，为1时退化为逐条消费
+     */
+    @Value("${hmdp.seckill.order.batch-size:50}")
+    private int batchSize;
+    /**
+     * 批次未读满时最多再等待的毫秒数，用来攒批
+     */
+    @Value("${hmdp.seckill.order.max-linger-ms:200}")
+    private long maxLingerMs;
+    /**
+     * 订单stream的分区数P，订单按用户id（或优惠券id）哈希到stream.orders:0 ~ stream.orders:P-1
+     */
+    @Value("${hmdp.seckill.order.partitions:4}")
+    private int partitions;
+    /**
+     * 按什么哈希分区：user 或 voucher
+     */
+    @Value("${hmdp.seckill.order.route-by:user}")
+    private String routeBy;
+    /**
+     * 每个节点的消费者数量
+     */
+    @Value("${hmdp.seckill.order.consumers:2}")
+    private int consumers;
+    /**
+     * pending消息闲置超过该毫秒数才会被恢复任务认领
+     */
+    @Value("${hmdp.seckill.order.recovery.min-idle-ms:60000}")
+    private long recoveryMinIdleMs;
+    @Value("${hmdp.seckill.order.recovery.interval-ms:5000}")
+    private long recoveryIntervalMs;
+    @Value("${hmdp.seckill.order.recovery.batch-size:100}")
+    private long recoveryBatchSize;
+    @Value("${hmdp.seckill.order.recovery.threads:4}")
+    private int recoveryThreads;
+    /**
+     * 投递次数达到该值的消息转入死信队列
+     */
+    @Value("${hmdp.seckill.order.recovery.max-deliveries:5}")
+    private long maxDeliveries;
+    /**
+     * 订单队列：stream（redis stream，持久化，支持多节点和pending恢复）或 local（本节点内存队列）
+     * local模式不写stream，节点宕机会丢失排队中的订单，只用于没有stream命令的环境，例如基准测试的进程内redis
+     */
+    @Value("${hmdp.seckill.order.queue:stream}")
+    private String orderQueue;
+    /**
+     * local模式内存队列的容量
+     */
+    @Value("${hmdp.seckill.order.local-capacity:1048576}")
+    private int localCapacity;
+    private BlockingQueue<VoucherOrder> orderTasks;
+    @Value("${spring.application.name:hmdp}")
+    private String applicationName;
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    /**
+     * 订单消费者：负责 partition % consumers == index 的那些分区
+     * 同一个分区在集群内同一时刻只被一个消费者持有（分区租约），保证分区内的订单按顺序处理
+     */
         private class VoucherOrderHandler implements Runnable{
-            String queueName="stream.orders";
+            private final String consumerName;
+            private final List<String> candidates=new ArrayList<>();
+            private final Set<String> owned=new LinkedHashSet<>();
+
+            VoucherOrderHandler(int index) {
+                this.consumerName=consumerName(index);
+                for (int i = index; i < partitions; i += consumers) {
+                    candidates.add(SECKILL_ORDER_STREAM_KEY + i);
+                }
+            }
+
         @Override
         public void run() {
-            while(true){
+            while(running){
                 try {
-                    //1. 获取队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2.判断消息是否获取成功
-                    if(list==null||list.isEmpty()){
-                        //2.1 如果获取失败，说明没有消息，继续下一次循环
+                    //1.续约/抢占自己负责的分区
+                    renewLeases();
+                    if(owned.isEmpty()){
+                        //分区都被其他节点持有，稍后再试
+                        Thread.sleep(1000);
                         continue;
                     }
-                    //3.解析订单中的消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4. 如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //5. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    //2. 批量获取队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS stream.orders:i ... > ...
+                    List<MapRecord<String, Object, Object>> list = readBatch();
+                    //3.判断消息是否获取成功
+                    if(list.isEmpty()){
+                        //3.1 如果获取失败，说明没有消息，继续下一次循环
+                        continue;
+                    }
+                    //4.批量下单，并统一ACK确认
+                    handleVoucherOrderBatch(list);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 } catch (Exception e) {
                    log.error("创建订单异常",e);
-                   handlePendingList();
+                   owned.forEach(this::handlePendingList);
+                }
+            }
+            //5.停止时释放分区租约，让其他节点尽快接手
+            for (String queueName : owned) {
+                stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                        Collections.singletonList(SECKILL_ORDER_LEASE_KEY + queueName), consumerName);
+            }
+        }
+
+        private void renewLeases() {
+            for (String queueName : candidates) {
+                Long leased = stringRedisTemplate.execute(PARTITION_LEASE_SCRIPT,
+                        Collections.singletonList(SECKILL_ORDER_LEASE_KEY + queueName),
+                        consumerName, String.valueOf(SECKILL_ORDER_LEASE_TTL));
+                if (leased != null && leased == 1) {
+                    if (owned.add(queueName)) {
+                        //新接手的分区，先处理自己以前没确认的消息，再读新消息
+                        log.info("消费者{}接手订单分区{}", consumerName, queueName);
+                        handlePendingList(queueName);
+                    }
+                } else if (owned.remove(queueName)) {
+                    log.warn("消费者{}失去订单分区{}的租约", consumerName, queueName);
                 }
             }
         }
 
-        private void handlePendingList() {
-            while(true){
+        @SuppressWarnings("unchecked")
+        private StreamOffset<String>[] ownedOffsets() {
+            return owned.stream()
+                    .map(queueName -> StreamOffset.create(queueName, ReadOffset.lastConsumed()))
+                    .toArray(StreamOffset[]::new);
+        }
+
+        /**
+         * 读取一批消息：第一次阻塞等待2秒，读到消息后在maxLingerMs内继续攒批，直到读满batchSize
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            StreamOffset<String>[] offsets = ownedOffsets();
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                    StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                    offsets
+            );
+            if(list==null||list.isEmpty()){
+                return batch;
+            }
+            batch.addAll(list);
+            long deadline=System.currentTimeMillis()+maxLingerMs;
+            while(batch.size()<batchSize){
+                long remaining=deadline-System.currentTimeMillis();
+                if(remaining<=0){
+                    break;
+                }
+                list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize-batch.size()).block(Duration.ofMillis(remaining)),
+                        offsets
+                );
+                if(list==null||list.isEmpty()){
+                    break;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
+        /**
+         * 从头到尾扫描一遍自己在该分区的pending-list，每次从上一批最后一条之后继续读，处理失败的消息不会卡住扫描
+         */
+        private void handlePendingList(String queueName) {
+            String lastId="0";
+            while(running){
                 try {
-                    //1. 获取队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1  STREAMS streams.order 0
+                    //1. 获取pending-list中的订单信息 XREADGROUP GROUP g1 consumer COUNT n STREAMS stream.orders:i lastId
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(queueName, ReadOffset.from(lastId))
                     );
                     //2.判断消息是否获取成功
                     if(list==null||list.isEmpty()){
                         //2.1 如果获取失败，说明pengdinglist没有异常消息，结束循环
                         break;
                     }
-                    //3.解析订单中的消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4. 如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //5. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    lastId=list.get(list.size()-1).getId().getValue();
+                    //3.下单并ACK确认
+                    handleVoucherOrderBatch(list);
                 } catch (Exception e) {
                     log.error("创建pengding-list订单异常",e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        Thread.currentThread().interrupt();
+                        break;
                     }
                 }
             }
@@ -125,70 +342,460 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }
 
-//    private BlockingQueue<VoucherOrder> orderTasks=new ArrayBlockingQueue<>(1024*1024);
-//    private class VoucherOrderHandler implements Runnable{
-//        @Override
-//        public void run() {
-//            while(true){
-//
-//                try {
-//                    //1. 获取队列中的订单信息
-//                    VoucherOrder voucherOrder=orderTasks.take();
-//                    //2.创建订单
-//                    handleVoucherOrder(voucherOrder);
-//                } catch (Exception e) {
-//                   log.error("创建订单异常",e);
-//                }
-//            }
-//        }
-//    }
+    /**
+     * pending-list恢复任务：定时用XPENDING找出所有消费者（包括已经宕机的节点）闲置超过minIdle的消息，
+     * XCLAIM到本节点后并行重试；投递次数达到上限的消息转入死信stream.orders.dlq，不再阻塞正常订单
+     */
+    private class PendingRecoveryHandler implements Runnable{
+        private final String consumerName=consumerName(0)+"-recovery";
+
+        @Override
+        public void run() {
+            long pending=0;
+            long oldest=0;
+            for (int i = 0; i < partitions && running; i++) {
+                String queueName=SECKILL_ORDER_STREAM_KEY+i;
+                try {
+                    //1.统计pending数量和最老消息的等待时间
+                    PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(queueName, SECKILL_ORDER_GROUP);
+                    if(summary==null||summary.getTotalPendingMessages()==0){
+                        continue;
+                    }
+                    pending+=summary.getTotalPendingMessages();
+                    Long minTimestamp=RecordId.of(summary.minMessageId()).getTimestamp();
+                    if(minTimestamp!=null){
+                        oldest=Math.max(oldest,System.currentTimeMillis()-minTimestamp);
+                    }
+                    //2.恢复闲置的消息
+                    recover(queueName);
+                } catch (Exception e) {
+                    log.error("恢复pending-list订单异常，stream：{}", queueName, e);
+                }
+            }
+            pendingCount.set(pending);
+            oldestPendingAgeMs.set(oldest);
+            try {
+                Long dlqSize=stringRedisTemplate.opsForStream().size(SECKILL_ORDER_DLQ_KEY);
+                dlqDepth.set(dlqSize==null?0:dlqSize);
+            } catch (Exception e) {
+                //异常不能抛出去，否则定时任务会停止
+                log.error("查询死信队列长度异常", e);
+            }
+        }
+
+        private void recover(String queueName) throws InterruptedException {
+            //1.XPENDING stream.orders:i g1 - + count
+            PendingMessages messages = stringRedisTemplate.opsForStream()
+                    .pending(queueName, SECKILL_ORDER_GROUP, Range.unbounded(), recoveryBatchSize);
+            List<RecordId> retryIds=new ArrayList<>();
+            for (PendingMessage message : messages) {
+                if(message.getElapsedTimeSinceLastDelivery().toMillis()<recoveryMinIdleMs){
+                    continue;
+                }
+                if(message.getTotalDeliveryCount()>=maxDeliveries){
+                    //2.投递次数达到上限，转入死信队列并ACK
+                    deadLetter(queueName, message);
+                }else{
+                    retryIds.add(message.getId());
+                }
+            }
+            if(retryIds.isEmpty()){
+                return;
+            }
+            //3.XCLAIM到恢复消费者，同时满足minIdle才会被认领，多个节点不会重复认领
+            List<MapRecord<String, Object, Object>> records = claim(queueName, retryIds);
+            //4.并行重试，成功的消息在handleVoucherOrderBatch中ACK，失败的留在pending-list中，投递次数加一
+            List<Callable<Object>> tasks=new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                tasks.add(Executors.callable(() -> handleVoucherOrderBatch(Collections.singletonList(record))));
+            }
+            pendingRecoveryExecutor.invokeAll(tasks);
+            recoveredCounter.increment(records.size());
+        }
+
+        private List<MapRecord<String, Object, Object>> claim(String queueName, List<RecordId> ids) {
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.xClaim(queueName.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, consumerName,
+                            XClaimOptions.minIdle(Duration.ofMillis(recoveryMinIdleMs)).ids(ids.toArray(new RecordId[0]))));
+            List<MapRecord<String, Object, Object>> records=new ArrayList<>();
+            if(claimed==null){
+                return records;
+            }
+            for (ByteRecord byteRecord : claimed) {
+                MapRecord<String, String, String> record = byteRecord.deserialize(
+                        StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8);
+                records.add(StreamRecords.newRecord()
+                        .in(queueName)
+                        .withId(record.getId())
+                        .ofMap(new HashMap<Object, Object>(record.getValue())));
+            }
+            return records;
+        }
+
+        private void deadLetter(String queueName, PendingMessage message) {
+            //读出原消息内容，连同来源和投递次数一起写入死信队列，并ACK原消息
+            List<MapRecord<String, Object, Object>> origin = stringRedisTemplate.opsForStream()
+                    .range(queueName, Range.closed(message.getIdAsString(), message.getIdAsString()));
+            List<String> args=new ArrayList<>();
+            args.add(SECKILL_ORDER_GROUP);
+            args.add(message.getIdAsString());
+            args.add("source");
+            args.add(queueName);
+            args.add("deliveries");
+            args.add(String.valueOf(message.getTotalDeliveryCount()));
+            if(origin!=null&&!origin.isEmpty()){
+                origin.get(0).getValue().forEach((k,v)->{
+                    args.add(k.toString());
+                    args.add(v.toString());
+                });
+            }
+            stringRedisTemplate.execute(DEAD_LETTER_SCRIPT, Arrays.asList(queueName, SECKILL_ORDER_DLQ_KEY), args.toArray());
+            if(origin!=null&&!origin.isEmpty()&&origin.get(0).getValue().get("id")!=null){
+                updateOrderStatus(Collections.emptyList(),
+                        Collections.singletonList(Long.valueOf(origin.get(0).getValue().get("id").toString())));
+            }
+            deadLetterCounter.increment();
+            log.error("订单消息投递{}次仍然失败，转入死信队列，stream：{}，消息id：{}",
+                    message.getTotalDeliveryCount(), queueName, message.getIdAsString());
+        }
+    }
+
+    /**
+     * 消费者名称由实例（主机名+端口）和序号组成，节点重启后名称不变，可以继续处理自己的pending-list
+     */
+    private String consumerName(int index) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        return applicationName + "-" + host + ":" + serverPort + "-c" + index;
+    }
+
+    /**
+     * 订单消息所在的分区stream
+     */
+    private String orderStreamKey(Long voucherId, Long userId) {
+        long routeKey = "voucher".equals(routeBy) ? voucherId : userId;
+        return SECKILL_ORDER_STREAM_KEY + Math.floorMod(Long.hashCode(routeKey), partitions);
+    }
+
+    private boolean isLocalQueue() {
+        return "local".equals(orderQueue);
+    }
+
+    /**
+     * 本地队列模式：订单放入内存队列，队列满时直接标记失败
+     */
+    private void offerLocal(VoucherOrder voucherOrder) {
+        if (!orderTasks.offer(voucherOrder)) {
+            log.error("本地订单队列已满，订单id：{}", voucherOrder.getId());
+            updateOrderStatus(Collections.emptyList(), Collections.singletonList(voucherOrder.getId()));
+        }
+    }
+
+    /**
+     * 本地队列的消费者：和stream消费者一样攒批，走同一套批量下单逻辑，没有ACK和pending恢复
+     */
+    private class LocalVoucherOrderHandler implements Runnable{
+        @Override
+        public void run() {
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            while(running){
+                try {
+                    //1. 获取队列中的订单信息，第一条阻塞等待，之后在maxLingerMs内攒满一批
+                    VoucherOrder first = orderTasks.poll(2, TimeUnit.SECONDS);
+                    if(first==null){
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline=System.currentTimeMillis()+maxLingerMs;
+                    while(batch.size()<batchSize){
+                        long remaining=deadline-System.currentTimeMillis();
+                        VoucherOrder next = remaining<=0 ? null : orderTasks.poll(remaining, TimeUnit.MILLISECONDS);
+                        if(next==null){
+                            break;
+                        }
+                        batch.add(next);
+                        orderTasks.drainTo(batch, batchSize-batch.size());
+                    }
+                    //2.批量创建订单
+                    List<Long> created = new ArrayList<>();
+                    List<Long> failed = new ArrayList<>();
+                    Set<Long> handled = createOrders(groupByVoucher(batch), created, failed);
+                    for (VoucherOrder order : batch) {
+                        if (!handled.contains(order.getId())) {
+                            //没有pending-list可以重试，异常的订单直接标记失败
+                            failed.add(order.getId());
+                        }
+                    }
+                    updateOrderStatus(created, failed);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                   log.error("创建订单异常",e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private static Map<Long, List<VoucherOrder>> groupByVoucher(List<VoucherOrder> orders) {
+        Map<Long, List<VoucherOrder>> ordersByVoucher = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            ordersByVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+        }
+        return ordersByVoucher;
+    }
+
+    /**
+     * 批量处理一批订单消息：按优惠券分组，每组一次扣减库存、一次批量插入，最后一次XACK
+     * 某一组批量下单失败时退回逐条下单，单条坏消息不会影响同批次的其他订单
+     */
+    private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> records) {
+        //1.解析消息，按优惠券分组
+        List<MapRecord<String, Object, Object>> acked = new ArrayList<>(records.size());
+        Map<Long, List<MapRecord<String, Object, Object>>> recordsByVoucher = new LinkedHashMap<>();
+        Map<Long, List<VoucherOrder>> ordersByVoucher = new LinkedHashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder;
+            try {
+                voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            } catch (Exception e) {
+                //消息格式错误，重试也无法处理，直接确认掉
+                log.error("订单消息解析失败，消息id：{}", record.getId(), e);
+                acked.add(record);
+                continue;
+            }
+            if (voucherOrder.getId() == null || voucherOrder.getUserId() == null || voucherOrder.getVoucherId() == null) {
+                log.error("订单消息字段缺失，消息id：{}，内容：{}", record.getId(), record.getValue());
+                acked.add(record);
+                continue;
+            }
+            recordsByVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(record);
+            ordersByVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+        //2.每个优惠券一次批量下单，处理完的消息（成功或者确定失败）才ACK，异常的留在pending-list中等待重试
+        List<Long> created = new ArrayList<>();
+        List<Long> failed = new ArrayList<>();
+        Set<Long> handled = createOrders(ordersByVoucher, created, failed);
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            List<MapRecord<String, Object, Object>> group = recordsByVoucher.get(entry.getKey());
+            List<VoucherOrder> orders = entry.getValue();
+            for (int i = 0; i < orders.size(); i++) {
+                if (handled.contains(orders.get(i).getId())) {
+                    acked.add(group.get(i));
+                }
+            }
+        }
+        //3.每个分区一次ACK确认整批消息 XACK stream.orders:i g1 id1 id2 ...
+        Map<String, List<RecordId>> ackIds = new LinkedHashMap<>();
+        for (MapRecord<String, Object, Object> record : acked) {
+            ackIds.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        ackIds.forEach((queueName, ids) ->
+                stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+        //4.一个pipeline更新订单状态，供客户端轮询
+        updateOrderStatus(created, failed);
+    }
+
+    /**
+     * 按优惠券分组批量下单，某一组批量下单失败时退回逐条下单，单条坏订单不会影响同批次的其他订单
+     * @param created 成功创建（或者重复投递、已经存在）的订单id
+     * @param failed 一人一单或者库存校验没通过的订单id
+     * @return 已经处理完的订单id，抛异常（包括订单锁被占用）的订单不在其中，stream模式下留在pending-list中重试
+     */
+    private Set<Long> createOrders(Map<Long, List<VoucherOrder>> ordersByVoucher, List<Long> created, List<Long> failed) {
+        Set<Long> handled = new HashSet<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            try {
+                Set<Long> createdIds = self.createVoucherOrderBatch(orders).stream()
+                        .map(VoucherOrder::getId).collect(Collectors.toSet());
+                for (VoucherOrder order : orders) {
+                    (createdIds.contains(order.getId()) ? created : failed).add(order.getId());
+                    handled.add(order.getId());
+                }
+            } catch (Exception e) {
+                log.error("批量创建订单失败，优惠券id：{}，改为逐条下单", entry.getKey(), e);
+                //逐条下单
+                for (VoucherOrder order : orders) {
+                    try {
+                        boolean success = handleVoucherOrder(order);
+                        (success ? created : failed).add(order.getId());
+                        handled.add(order.getId());
+                    } catch (Exception ex) {
+                        //订单锁被占用或者数据库异常都不算处理完，不ACK
+                        log.error("创建订单异常，订单id：{}", order.getId(), ex);
+                    }
+                }
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * 批量写入订单状态 CREATED / FAILED
+     */
+    private void updateOrderStatus(List<Long> created, List<Long> failed) {
+        if (created.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : created) {
+                conn.setEx(SECKILL_ORDER_STATUS_KEY + orderId, SECKILL_ORDER_STATUS_TTL, ORDER_STATUS_CREATED);
+            }
+            for (Long orderId : failed) {
+                conn.setEx(SECKILL_ORDER_STATUS_KEY + orderId, SECKILL_ORDER_STATUS_TTL, ORDER_STATUS_FAILED);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        //只读redis，轮询不会打到MySQL
+        String status = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        if (status == null) {
+            return Result.fail("订单状态不存在或已过期！");
+        }
+        return Result.ok(status);
+    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
         //1. 获取用户
         Long userId=voucherOrder.getUserId();
-        //2. 创建锁对象
-         SimpleRedisLock simpleRedisLock=new SimpleRedisLock("order"+userId, stringRedisTemplate);
-        //获取互斥锁
-        boolean isLock = simpleRedisLock.tryLock(1200);
+        //2. 创建锁对象，消费者跑在线程池里，锁的持有者不能用线程id区分
+        //两级锁：本节点内的并发在本地锁上排队，只有本地持有者才访问redis
+        ILock lock = twoTierLockClient.getLock("order"+userId);
+        //获取互斥锁，不指定租期，由看门狗续期到事务结束
+        //锁被占用（比如pending-list恢复线程正在处理同一个用户的重复投递）不是下单失败：抛出异常，消息留在pending-list中稍后重试，
+        //redis已经扣了库存、记了买家，这里标记FAILED库存就再也回不来了
+        boolean isLock;
+        try {
+            isLock = lock.tryLock(0, -1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("获取订单锁被中断，订单id：" + voucherOrder.getId(), e);
+        }
         if(!isLock){
-           log.error("抱歉，一个人只能抢购一次该优惠卷,不允许重复下单");
+           throw new IllegalStateException("用户" + userId + "的订单锁被占用，稍后重试，订单id：" + voucherOrder.getId());
         }
         try {
             //获取代理对象，事务才能正常执行，否则事务会失效
-             proxy.createVoucherOrder(voucherOrder);
+             return self.createVoucherOrder(voucherOrder);
         } finally {
             //释放锁
-            simpleRedisLock.unlock();
+            lock.unlock();
         }
     }
 
     //定义一个方法，让线程在程序开始时就执行任务
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //0.选择id生成器
+        idWorker = idWorkers.get(idWorkerName + "IdWorker");
+        if (idWorker == null) {
+            throw new IllegalStateException("未知的id生成器：" + idWorkerName);
+        }
+        //本地队列模式：不用stream，也没有pending恢复；和stream一样，consumers为0时订单留在队列里不消费
+        if (isLocalQueue()) {
+            orderTasks = new ArrayBlockingQueue<>(localCapacity);
+            if (consumers > 0) {
+                seckillOrderExecutor = Executors.newFixedThreadPool(consumers);
+                for (int i = 0; i < consumers; i++) {
+                    seckillOrderExecutor.submit(new LocalVoucherOrderHandler());
+                }
+            }
+            return;
+        }
+        //1.确保每个分区的消费者组都存在 XGROUP CREATE stream.orders:i g1 0 MKSTREAM
+        for (int i = 0; i < partitions; i++) {
+            stringRedisTemplate.execute(CREATE_GROUP_SCRIPT,
+                    Collections.singletonList(SECKILL_ORDER_STREAM_KEY + i), SECKILL_ORDER_GROUP);
+        }
+        //2.启动消费者线程池，consumers为0时本节点只负责接收秒杀请求，不消费订单
+        if (consumers > 0) {
+            seckillOrderExecutor = Executors.newFixedThreadPool(consumers);
+            for (int i = 0; i < consumers; i++) {
+                seckillOrderExecutor.submit(new VoucherOrderHandler(i));
+            }
+        }
+        //3.注册指标，启动pending-list恢复任务
+        meterRegistry.gauge("seckill.orders.pending", pendingCount);
+        meterRegistry.gauge("seckill.orders.pending.oldest.age.ms", oldestPendingAgeMs);
+        meterRegistry.gauge("seckill.orders.dlq.depth", dlqDepth);
+        recoveredCounter = meterRegistry.counter("seckill.orders.recovered");
+        deadLetterCounter = meterRegistry.counter("seckill.orders.dead.lettered");
+        pendingRecoveryExecutor = Executors.newFixedThreadPool(recoveryThreads);
+        pendingRecoveryScheduler = Executors.newSingleThreadScheduledExecutor();
+        pendingRecoveryScheduler.scheduleWithFixedDelay(new PendingRecoveryHandler(),
+                recoveryIntervalMs, recoveryIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        if (pendingRecoveryScheduler != null) {
+            pendingRecoveryScheduler.shutdown();
+            pendingRecoveryExecutor.shutdown();
+        }
+        if (seckillOrderExecutor != null) {
+            seckillOrderExecutor.shutdown();
+            seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        if (pendingRecoveryExecutor != null) {
+            pendingRecoveryExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
     }
 
-    private IVoucherOrderService proxy;
+    /**
+     * 自己的代理对象，启动时注入，消费者线程和pending恢复线程通过它调用事务方法，不依赖本节点是否处理过秒杀请求
+     */
+    @Lazy
+    @Autowired
+    private IVoucherOrderService self;
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //0.本地已经标记售罄，不再访问redis
+        if(seckillSoldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
         Long userId=UserHolder.getUser().getId();
-       //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString()
-        );
+        //订单id要随消息一起写入stream，所以在执行脚本之前生成
+        Long orderId=idWorker.nextId("order");
+        String streamKey=isLocalQueue() ? "" : orderStreamKey(voucherId, userId);
+        int r;
+        if(seckillStockShards.isEnabled()){
+            //1.分片库存模式
+            r=seckillStockShards.seckill(voucherId, userId, orderId, streamKey);
+        }else{
+            //1.执行lua脚本
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), orderId.toString(), streamKey,
+                    String.valueOf(System.currentTimeMillis()), SECKILL_ORDER_STATUS_TTL.toString()
+            );
+            r=result.intValue();
+        }
         // 2.判断结果是否为0
-        int r=result.intValue();
+        if(r==1){
+            //2.1 库存不足，标记售罄并通知其他节点
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+        }
         if(r!=0){
-            //2.1 不为0，代表没有购买资格
-            return Result.fail(r==1?"库存不足":"不能重复下单");
+            //2.2 不为0，代表没有购买资格
+            return Result.fail(SECKILL_FAIL_MESSAGES.getOrDefault(r,"下单失败"));
+        }
+        //2.3 为0，有购买资格，下单信息已经由脚本写入消息队列；本地队列模式在这里放入内存队列
+        if(isLocalQueue()){
+            offerLocal(new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId));
         }
-        //2.2 为0，有购买资格，保存下单信息到阻塞队列中
-        Long orderId=redisIdWorker.nextId("order");
-
-        //获取代理对象
-        proxy=(IVoucherOrderService) AopContext.currentProxy();
         //3.返回订单id
        return Result.ok(orderId);
     }
@@ -226,12 +833,17 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
         //一人一单
         Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if(count>0){
+        VoucherOrder existing = query().select("id").eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).one();
+        if(existing!=null){
+            //同一条消息重复投递（落库成功但ACK丢失后被XCLAIM认领），订单已经存在，按成功处理
+            if(existing.getId().equals(voucherOrder.getId())){
+                return true;
+            }
             log.error("用户已经购买过一次优惠卷！");
+            return false;
         }
         //扣减库存
         boolean success = seckillVoucherService.update().
@@ -242,8 +854,61 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //扣减失败
         if(!success){
             log.error("扣减失败，库存不足！");
+            return false;
         }
         //创建订单
-        save(voucherOrder);
+        return save(voucherOrder);
+    }
+
+    /**
+     * 同一张优惠券的一批订单：一次查询校验一人一单，一次stock=stock-k扣减库存，一次多行insert
+     * 库存不足或者sql异常时整批回滚，由调用方退回逐条下单
+     * @return 成功创建的订单，以及重复投递、已经落库的订单；其余的是一人一单校验没通过的
+     */
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        Long voucherId = voucherOrders.get(0).getVoucherId();
+        //1.一人一单：先在批次内去重
+        Map<Long, VoucherOrder> ordersByUser = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (ordersByUser.putIfAbsent(voucherOrder.getUserId(), voucherOrder) != null) {
+                log.error("用户已经购买过一次优惠卷！userId：{}", voucherOrder.getUserId());
+            }
+        }
+        //2.再过滤掉数据库中已经下过单的用户，订单id相同的是重复投递的消息，订单已经存在，按成功返回
+        List<VoucherOrder> bought = query().select("id", "user_id")
+                .eq("voucher_id", voucherId)
+                .in("user_id", ordersByUser.keySet())
+                .list();
+        Set<Long> existingIds = new HashSet<>();
+        for (VoucherOrder order : bought) {
+            existingIds.add(order.getId());
+            VoucherOrder pending = ordersByUser.remove(order.getUserId());
+            if (pending != null && !order.getId().equals(pending.getId())) {
+                log.error("用户已经购买过一次优惠卷！userId：{}", order.getUserId());
+            }
+        }
+        List<VoucherOrder> result = voucherOrders.stream()
+                .filter(order -> existingIds.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (ordersByUser.isEmpty()) {
+            return result;
+        }
+        //3.一次扣减k个库存
+        int k = ordersByUser.size();
+        boolean success = seckillVoucherService.update().
+                setSql("stock=stock-" + k).
+                eq("voucher_id", voucherId).
+                ge("stock", k).//乐观锁
+                        update();
+        if (!success) {
+            //库存不够整批扣减，抛异常回滚，交给逐条下单处理
+            throw new IllegalStateException("批量扣减失败，库存不足！voucherId：" + voucherId);
+        }
+        //4.多行insert创建订单
+        List<VoucherOrder> orders = new ArrayList<>(ordersByUser.values());
+        getBaseMapper().insertBatch(orders);
+        result.addAll(orders);
+        return result;
     }
 }
@@ -7,15 +7,21 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillPreheater;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.Date;
 import java.util.List;
 
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
 
 /**
  * <p>
@@ -32,6 +38,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillStockShards seckillStockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -54,6 +64,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀信息到redis库存中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        if(seckillStockShards.isEnabled()){
+            //热点券：库存拆分到多个分片key上
+            seckillStockShards.setStock(voucher.getId(),voucher.getStock());
+        }else{
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        }
+        //秒杀时间窗口，由seckill.lua判断，秒杀结束一天后过期
+        String windowKey=SECKILL_WINDOW_KEY+voucher.getId();
+        stringRedisTemplate.opsForHash().putAll(windowKey, SeckillPreheater.window(seckillVoucher));
+        stringRedisTemplate.expireAt(windowKey, Date.from(voucher.getEndTime().plusDays(1).atZone(ZoneId.systemDefault()).toInstant()));
+        //库存重新写入，清除所有节点的售罄标记
+        seckillSoldOutRegistry.clear(voucher.getId());
     }
 }
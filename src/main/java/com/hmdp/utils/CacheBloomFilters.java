@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+
+/**
+ * 按key前缀管理缓存防穿透的布隆过滤器
+ * 业务启动时register前缀和全表id的查询方式，应用启动完成后从数据库重建；新增数据后调用add
+ * 其他节点通过发布订阅更新本地副本，同时定时从redis全量同步一次，防止漏收消息
+ */
+@Slf4j
+@Component
+public class CacheBloomFilters implements MessageListener, ApplicationRunner {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private MeterRegistry meterRegistry;
+    /**
+     * 布隆过滤器总开关
+     */
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+    /**
+     * 每个前缀预计的数据量
+     */
+    @Value("${hmdp.cache.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    /**
+     * 数据量达到预计值时的误判率
+     */
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * key前缀 -> 布隆过滤器
+     */
+    private final Map<String, RedisBloomFilter> filters = new ConcurrentHashMap<>();
+    /**
+     * key前缀 -> 全表id的查询方式
+     */
+    private final Map<String, Supplier<Iterable<?>>> idLoaders = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    /**
+     * 给一个key前缀开启布隆过滤器
+     * @param idLoader 查询表中所有id，启动时用来重建
+     */
+    public void register(String prefix, Supplier<Iterable<?>> idLoader) {
+        if (!enabled) {
+            return;
+        }
+        RedisBloomFilter filter = new RedisBloomFilter(prefix, expectedInsertions, fpp, stringRedisTemplate);
+        filters.put(prefix, filter);
+        idLoaders.put(prefix, idLoader);
+        Gauge.builder("cache.bloom.capacity", filter, RedisBloomFilter::getExpectedInsertions)
+                .tag("prefix", prefix).register(meterRegistry);
+        Gauge.builder("cache.bloom.fpp", filter, RedisBloomFilter::getFpp)
+                .tag("prefix", prefix).tag("type", "configured").register(meterRegistry);
+        Gauge.builder("cache.bloom.fpp", filter, RedisBloomFilter::estimatedFpp)
+                .tag("prefix", prefix).tag("type", "estimated").register(meterRegistry);
+        FunctionCounter.builder("cache.bloom.rejected", filter, RedisBloomFilter::getRejected)
+                .tag("prefix", prefix).register(meterRegistry);
+    }
+
+    /**
+     * 是否可能存在；前缀没有开启布隆过滤器或者还没重建完成时返回true
+     */
+    public boolean mightContain(String prefix, Object id) {
+        RedisBloomFilter filter = filters.get(prefix);
+        return filter == null || filter.mightContain(id);
+    }
+
+    /**
+     * 新增数据后调用
+     */
+    public void add(String prefix, Object id) {
+        RedisBloomFilter filter = filters.get(prefix);
+        if (filter != null) {
+            filter.add(id);
+        }
+    }
+
+    /**
+     * 应用启动完成后从数据库重建，重建失败的前缀不拦截任何id
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        for (Map.Entry<String, RedisBloomFilter> entry : filters.entrySet()) {
+            try {
+                long start = System.currentTimeMillis();
+                entry.getValue().rebuild(idLoaders.get(entry.getKey()).get());
+                log.info("布隆过滤器重建完成，prefix：{}，位数：{}，耗时：{}ms", entry.getKey(),
+                        entry.getValue().getBitSize(), System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                log.error("布隆过滤器重建失败，prefix：{}", entry.getKey(), e);
+            }
+        }
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.sync-ms:60000}", fixedDelayString = "${hmdp.cache.bloom.sync-ms:60000}")
+    public void sync() {
+        for (RedisBloomFilter filter : filters.values()) {
+            if (!filter.isReady()) {
+                continue;
+            }
+            try {
+                filter.sync();
+            } catch (Exception e) {
+                log.warn("布隆过滤器同步失败，prefix：{}", filter.getPrefix(), e);
+            }
+        }
+    }
+
+    /**
+     * 其他节点新增的id，消息格式：前缀 + 空格 + id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(' ');
+        RedisBloomFilter filter = index < 0 ? null : filters.get(body.substring(0, index));
+        if (filter != null) {
+            filter.addLocal(body.substring(index + 1));
+        }
+    }
+}
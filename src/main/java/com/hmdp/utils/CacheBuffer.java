@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * 缓存值的二进制读写缓冲区，整数用变长编码，字符串用 长度+UTF-8，不做任何反射
+ * 同一个对象要么只用来写，要么只用来读，不是线程安全的
+ */
+public class CacheBuffer {
+    private byte[] bytes;
+    private int position;
+    private final int limit;
+
+    /**
+     * 写入用
+     */
+    public CacheBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+        this.limit = -1;
+    }
+
+    /**
+     * 读取用
+     */
+    public CacheBuffer(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.limit = bytes.length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, position);
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public int remaining() {
+        return limit - position;
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        bytes[position++] = (byte) value;
+    }
+
+    public void writeBytes(byte[] value) {
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, bytes, position, value.length);
+        position += value.length;
+    }
+
+    public void writeFixedLong(long value) {
+        ensureCapacity(8);
+        for (int i = 56; i >= 0; i -= 8) {
+            bytes[position++] = (byte) (value >>> i);
+        }
+    }
+
+    /**
+     * 无符号变长整数，每个字节7位，最高位表示后面还有字节
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+    }
+
+    /**
+     * 有符号数先做zigzag，绝对值小的负数也只占一两个字节
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeDouble(double value) {
+        writeFixedLong(Double.doubleToRawLongBits(value));
+    }
+
+    public void writeString(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(utf8.length);
+        writeBytes(utf8);
+    }
+
+    /**
+     * 按UTC换算成毫秒，只是编码方式，不涉及时区转换
+     */
+    public void writeDateTime(LocalDateTime value) {
+        writeSignedVarLong(value.toInstant(ZoneOffset.UTC).toEpochMilli());
+    }
+
+    public int readByte() {
+        checkRemaining(1);
+        return bytes[position++] & 0xFF;
+    }
+
+    public long readFixedLong() {
+        checkRemaining(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("变长整数格式错误");
+    }
+
+    public long readSignedVarLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readFixedLong());
+    }
+
+    public String readString() {
+        int length = (int) readVarLong();
+        checkRemaining(length);
+        String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public LocalDateTime readDateTime() {
+        long millis = readSignedVarLong();
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), (int) Math.floorMod(millis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    /**
+     * 剩下的所有字节按UTF-8转成字符串
+     */
+    public String readRemainingString() {
+        String value = new String(bytes, position, remaining(), StandardCharsets.UTF_8);
+        position = limit;
+        return value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (position + size > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + size));
+        }
+    }
+
+    private void checkRemaining(int size) {
+        if (size < 0 || position + size > limit) {
+            throw new IllegalStateException("缓存值长度不足");
+        }
+    }
+}
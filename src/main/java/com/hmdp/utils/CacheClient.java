@@ -1,120 +1,540 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * 两级缓存：一级是本节点的caffeine缓存（W-TinyLFU淘汰），按key前缀分开，保存已经反序列化好的对象；二级是redis
+ * 一级缓存命中时不访问redis，也不做JSON解析。写入方调用delete/invalidate，通过redis发布订阅让所有节点淘汰一级缓存
+ * 一级缓存中的对象是所有调用方共享的，拿到之后不能修改
+ * redis中的值格式：[格式版本1字节][编解码器id 1字节][schema版本1字节][逻辑过期时间8字节毫秒，0表示没有][编码后的数据]
+ * 格式版本2是软过期的缓存，在逻辑过期时间后面多一个变长整数：上次回源的耗时毫秒，用于提前刷新
+ * 第一个字节不是格式版本的值是以前直接存的JSON，仍然可以读
+ */
 @Slf4j
 @Component
-public class CacheClient {
-    private  static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+public class CacheClient implements MessageListener {
+    /**
+     * 一级缓存中表示"redis里缓存的是空值"
+     */
+    private static final LocalEntry NULL_ENTRY = new LocalEntry(null, 1, null);
+    /**
+     * 缓存值头部的格式版本
+     */
+    private static final int FORMAT_V1 = 1;
+    private static final int FORMAT_V2 = 2;
+    private static final byte[] EMPTY = new byte[0];
     @Resource
     private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 读写二进制缓存值，key仍然是字符串
+     */
+    private final RedisTemplate<String, byte[]> bytesRedisTemplate;
+    @Resource
+    private List<CacheCodec> cacheCodecs;
+    /**
+     * 写缓存使用的编解码方式：binary（有专门编解码器的类型用二进制，其他用JSON）或 json（全部用JSON）
+     */
+    @Value("${hmdp.cache.codec:binary}")
+    private String codecMode;
+    /**
+     * 软过期时间和硬过期TTL的随机抖动比例，0.1表示在±10%之间随机
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    /**
+     * XFetch提前刷新的系数，越大越早刷新，0表示不提前刷新
+     */
+    @Value("${hmdp.cache.xfetch-beta:1.0}")
+    private double xfetchBeta;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private CacheBloomFilters cacheBloomFilters;
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+    /**
+     * 是否开启一级缓存
+     */
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+    /**
+     * 每个前缀的一级缓存的最大权重，权重是redis中缓存值的字节数
+     */
+    @Value("${hmdp.cache.local.max-weight:20000000}")
+    private long localMaxWeight;
+    /**
+     * 一级缓存写入后的最长存活时间，兜底漏收的失效消息
+     */
+    @Value("${hmdp.cache.local.expire-after-write-ms:30000}")
+    private long localExpireAfterWriteMs;
+
+    /**
+     * key前缀 -> 一级缓存
+     */
+    private final Map<String, LocalCache> localCaches = new ConcurrentHashMap<>();
+    /**
+     * 编解码器id -> 编解码器，读缓存时按头部查找
+     */
+    private final CacheCodec[] codecsById = new CacheCodec[256];
+    /**
+     * 值类型 -> 写缓存使用的编解码器
+     */
+    private final Map<Class<?>, CacheCodec> codecsByType = new ConcurrentHashMap<>();
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    /**
+     * 缓存未命中时合并本节点对同一个key的回源
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
 
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.bytesRedisTemplate = new RedisTemplate<>();
+        bytesRedisTemplate.setConnectionFactory(stringRedisTemplate.getConnectionFactory());
+        bytesRedisTemplate.setKeySerializer(RedisSerializer.string());
+        bytesRedisTemplate.setValueSerializer(RedisSerializer.byteArray());
+        bytesRedisTemplate.afterPropertiesSet();
+        codecsById[jsonCodec.id()] = jsonCodec;
+    }
+
+    @PostConstruct
+    private void init() {
+        for (CacheCodec codec : cacheCodecs) {
+            if (codecsById[codec.id() & 0xFF] != null && codecsById[codec.id() & 0xFF].getClass() != codec.getClass()) {
+                throw new IllegalStateException("缓存编解码器id重复：" + codec.id());
+            }
+            codecsById[codec.id() & 0xFF] = codec;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        if (meterRegistry != null) {
+            FunctionCounter.builder("cache.singleflight.calls", singleFlight, SingleFlight::getExecuted)
+                    .tag("result", "executed").register(meterRegistry);
+            FunctionCounter.builder("cache.singleflight.calls", singleFlight, SingleFlight::getShared)
+                    .tag("result", "shared").register(meterRegistry);
+        }
+    }
+
+    /**
+     * 删除缓存，并通知所有节点淘汰一级缓存，更新数据库之后调用
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidate(key);
+    }
+
+    /**
+     * 只通知所有节点淘汰一级缓存，用于自己直接写了redis的场景
+     */
+    public void invalidate(String key) {
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evictLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void evictLocal(String key) {
+        //前缀只有几个，逐个淘汰即可
+        for (LocalCache localCache : localCaches.values()) {
+            localCache.evict(key);
+        }
     }
 
     /**
      * 向缓存中添加KEY
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        bytesRedisTemplate.opsForValue().set(key, encode(value, null),time,unit);
     }
 
     /**
      * 向缓存中添加热点KEY,但是设置的是逻辑过期时间
      */
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
-        RedisData redisData=new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        //逻辑过期时间写在头部，不再包一层RedisData
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        bytesRedisTemplate.opsForValue().set(key, encode(value, expireTime));
+        //数据变了，各节点的一级缓存要重新从redis加载
+        invalidate(key);
     }
 
     /**
      * 返回空值，解决缓存穿透问题
      */
     public <R,ID>R queryWithPassThrough(String prefix, ID id,Class<R> type,Function<ID,R> dataFallBack,Long time,TimeUnit unit){
-        //1.查询redis
+        //布隆过滤器判断一定不存在的id，不访问redis和数据库，也不缓存空值
+        if (!mightContain(prefix, id)) {
+            return null;
+        }
         String key=prefix+id;
-        String stringJSON = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isNotBlank(stringJSON)){
-            //缓存命中
-            R r = JSONUtil.toBean(stringJSON, type);
+        //0.查询一级缓存
+        LocalCache localCache = localCache(prefix);
+        if (localCache != null) {
+            LocalEntry entry = localCache.get(key);
+            if (entry != null) {
+                return (R) entry.value;
+            }
+        }
+        long generation = localCache == null ? 0 : localCache.generation.get();
+        //1.查询redis
+        byte[] raw = bytesRedisTemplate.opsForValue().get(key);
+        if(raw!=null&&raw.length>0){
+            //缓存命中，解码失败按未命中处理，重新查数据库覆盖掉
+            CacheValue<R> cacheValue = decode(key, raw, type, false);
+            if (cacheValue != null) {
+                recordL2(localCache, true);
+                putLocal(localCache, generation, key, new LocalEntry(cacheValue.value, raw.length, null));
+                return cacheValue.value;
+            }
+        }
+        //判断是否为空值
+        if(raw!=null&&raw.length==0){
+            recordL2(localCache, true);
+            putLocal(localCache, generation, key, NULL_ENTRY);
+            return null;
+        }
+        recordL2(localCache, false);
+        //2.缓存未命中，本节点同一个key的并发请求合并成一次回源
+        return singleFlight.execute(key, () -> {
+            //3.查询数据库
+            R r= dataFallBack.apply(id);
+            //4.没有查到数据,缓存空值
+            if(r==null){
+                //缓存空值，并且设置一下NULL的TTL，这可不是逻辑过期
+                bytesRedisTemplate.opsForValue().set(key,EMPTY,CACHE_NULL_TTL,TimeUnit.MINUTES);
+                return null;
+            }
+            //5.查到了数据，正常存入redis，把结果返回
+//            String string = JSONUtil.toJsonStr(r);
+//            stringRedisTemplate.opsForValue().set(key,string,time,unit);直接用类中写好的set就行
+            this.set(key,r,time,unit);
             return r;
+        });
+    }
+
+    /**
+     * 批量查询，缓存穿透的处理和queryWithPassThrough一样，但redis往返次数与ids数量无关：
+     * 查完一级缓存后只有一次MGET，未命中的id一次交给batchLoader（IN查询），查到的数据和空值用一个pipeline写回
+     * @param batchLoader 按id批量查询数据库，返回 id -> 数据，查不到的id不用放进结果
+     * @return 与ids顺序一致，不存在的id对应null
+     */
+    public <R,ID> List<R> queryMultiWithPassThrough(String prefix, List<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID,R>> batchLoader, Long time, TimeUnit unit){
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
         }
-        //判断是否为空字符串
-        if("".equals(stringJSON)){
+        LocalCache localCache = localCache(prefix);
+        long generation = localCache == null ? 0 : localCache.generation.get();
+        //1.去重，过滤掉一定不存在的id，再查一级缓存
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        List<ID> redisIds = new ArrayList<>();
+        List<String> redisKeys = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!mightContain(prefix, id)) {
+                continue;
+            }
+            String key = prefix + id;
+            LocalEntry entry = localCache == null ? null : localCache.get(key);
+            if (entry != null) {
+                found.put(id, (R) entry.value);
+                continue;
+            }
+            redisIds.add(id);
+            redisKeys.add(key);
+        }
+        //2.一次MGET查redis
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            List<byte[]> raws = bytesRedisTemplate.opsForValue().multiGet(redisKeys);
+            for (int i = 0; i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                String key = redisKeys.get(i);
+                byte[] raw = raws == null ? null : raws.get(i);
+                if (raw != null && raw.length == 0) {
+                    //缓存的空值
+                    recordL2(localCache, true);
+                    putLocal(localCache, generation, key, NULL_ENTRY);
+                    continue;
+                }
+                CacheValue<R> cacheValue = raw == null ? null : decode(key, raw, type, false);
+                if (cacheValue != null) {
+                    recordL2(localCache, true);
+                    putLocal(localCache, generation, key, new LocalEntry(cacheValue.value, raw.length, null));
+                    found.put(id, cacheValue.value);
+                    continue;
+                }
+                recordL2(localCache, false);
+                missIds.add(id);
+            }
+        }
+        //3.未命中的id一次查数据库
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = batchLoader.apply(missIds);
+            //4.查到的数据和空值用一个pipeline写回redis
+            bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    R r = loaded.get(id);
+                    byte[] key = (prefix + id).getBytes(StandardCharsets.UTF_8);
+                    if (r == null) {
+                        connection.set(key, EMPTY, Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES), RedisStringCommands.SetOption.UPSERT);
+                    } else {
+                        connection.set(key, encode(r, null), Expiration.from(time, unit), RedisStringCommands.SetOption.UPSERT);
+                        found.put(id, r);
+                    }
+                }
+                return null;
+            });
+        }
+        //5.按传入的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * 向缓存中添加软过期的KEY，软过期时间和redis的TTL都会加上随机抖动
+     * @param softTtl 软过期时间，之后读到的是旧值，同时在后台刷新
+     * @param hardTtl 硬过期时间，即redis中key的TTL，应大于softTtl
+     */
+    public void setWithSoftExpire(String key, Object value, Long softTtl, Long hardTtl, TimeUnit unit) {
+        setWithSoftExpire(key, value, softTtl, hardTtl, unit, 0);
+    }
+
+    /**
+     * 软过期 + 硬过期（stale-while-revalidate），同时解决缓存击穿和雪崩，也不需要预热：
+     * 软过期之前直接返回；软过期之后返回旧值，只有抢到锁的一个线程在后台刷新；硬过期后redis删除key，下一次请求同步回源
+     * 软过期时间和TTL都加了随机抖动，同一批写入的key不会同时过期；
+     * 热点key按XFetch算法提前刷新：离软过期越近、上次回源越慢，越可能提前刷新，通常在软过期之前就刷新完了
+     */
+    public <R,ID>R queryWithSoftExpire(String prefix, ID id, Class<R> type, Function<ID,R> dataFallBack, Long softTtl, Long hardTtl, TimeUnit unit){
+        if (!mightContain(prefix, id)) {
             return null;
         }
-        //2.缓存未命中
-        //3.查询数据库
-        R r= dataFallBack.apply(id);
-        //4.没有查到数据,缓存空值
-        if(r==null){
-            //缓存空值，并且设置一下NULL的TTL，这可不是逻辑过期
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+        String key=prefix+id;
+        //0.查询一级缓存，一级缓存里也记着软过期时间和回源耗时
+        LocalCache localCache = localCache(prefix);
+        if (localCache != null) {
+            LocalEntry entry = localCache.get(key);
+            if (entry == NULL_ENTRY || entry != null && !shouldRefresh(entry.expireTime, entry.delta)) {
+                return (R) entry.value;
+            }
+        }
+        long generation = localCache == null ? 0 : localCache.generation.get();
+        //1.查询redis
+        byte[] raw = bytesRedisTemplate.opsForValue().get(key);
+        if (raw != null && raw.length == 0) {
+            recordL2(localCache, true);
+            putLocal(localCache, generation, key, NULL_ENTRY);
             return null;
         }
-        //5.查到了数据，正常存入redis，把结果返回
-//        String string = JSONUtil.toJsonStr(r);
-//        stringRedisTemplate.opsForValue().set(key,string,time,unit);直接用类中写好的set就行
-        this.set(key,r,time,unit);
+        CacheValue<R> cacheValue = raw == null ? null : decode(key, raw, type, true);
+        if (cacheValue == null) {
+            //2.硬过期、从未写入或者解码失败，同步回源，本节点的并发请求合并成一次
+            recordL2(localCache, false);
+            return singleFlight.execute(key, () -> loadWithSoftExpire(key, id, dataFallBack, softTtl, hardTtl, unit));
+        }
+        recordL2(localCache, true);
+        //3.还不需要刷新，直接返回
+        if (!shouldRefresh(cacheValue.expireTime, cacheValue.delta)) {
+            putLocal(localCache, generation, key, new LocalEntry(cacheValue.value, raw.length, cacheValue.expireTime, cacheValue.delta));
+            return cacheValue.value;
+        }
+        //4.软过期了或者XFetch决定提前刷新：交给重建线程池在后台刷新，所有线程都先返回旧值
+        //同一个key本节点只会排一个任务，任务里再抢互斥锁，保证整个集群只有一个节点回源
+        String lockKey = LOCK_KEY + key;
+        cacheRebuildExecutor.submit(key, () -> {
+            if (!this.tryLock(lockKey)) {
+                return;
+            }
+            try {
+                loadWithSoftExpire(key, id, dataFallBack, softTtl, hardTtl, unit);
+            } finally {
+                unLock(lockKey);
+            }
+        });
+        return cacheValue.value;
+    }
+
+    /**
+     * 回源并写入软过期的缓存，同时记录回源耗时
+     */
+    private <R,ID> R loadWithSoftExpire(String key, ID id, Function<ID,R> dataFallBack, Long softTtl, Long hardTtl, TimeUnit unit) {
+        long start = System.currentTimeMillis();
+        R r = dataFallBack.apply(id);
+        if (r == null) {
+            bytesRedisTemplate.opsForValue().set(key, EMPTY, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        setWithSoftExpire(key, r, softTtl, hardTtl, unit, System.currentTimeMillis() - start);
         return r;
     }
 
+    private void setWithSoftExpire(String key, Object value, Long softTtl, Long hardTtl, TimeUnit unit, long delta) {
+        long softMillis = jitter(unit.toMillis(softTtl));
+        long hardMillis = Math.max(softMillis, jitter(unit.toMillis(hardTtl)));
+        LocalDateTime softExpireTime = LocalDateTime.now().plus(softMillis, ChronoUnit.MILLIS);
+        bytesRedisTemplate.opsForValue().set(key, encode(value, softExpireTime, delta), hardMillis, TimeUnit.MILLISECONDS);
+        invalidate(key);
+    }
+
+    /**
+     * 批量写入软过期的KEY，用于启动预热：各个值并行编码，一个pipeline写入
+     * 写入的就是数据库中的当前值，不发布本地缓存失效消息；回源耗时未知，记为0，第一次软过期刷新之后才有XFetch
+     * @param entries key -> 缓存值
+     */
+    public void setMultiWithSoftExpire(Map<String, ?> entries, Long softTtl, Long hardTtl, TimeUnit unit) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        //1.并行编码，每个key单独计算抖动后的软过期时间和TTL
+        List<Object[]> encoded = entries.entrySet().parallelStream().map(entry -> {
+            long softMillis = jitter(unit.toMillis(softTtl));
+            long hardMillis = Math.max(softMillis, jitter(unit.toMillis(hardTtl)));
+            LocalDateTime softExpireTime = LocalDateTime.now().plus(softMillis, ChronoUnit.MILLIS);
+            return new Object[]{entry.getKey().getBytes(StandardCharsets.UTF_8),
+                    encode(entry.getValue(), softExpireTime, 0), hardMillis};
+        }).collect(Collectors.toList());
+        //2.一个pipeline写入
+        bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Object[] e : encoded) {
+                connection.set((byte[]) e[0], (byte[]) e[1], Expiration.milliseconds((Long) e[2]), RedisStringCommands.SetOption.UPSERT);
+            }
+            return null;
+        });
+    }
+
+    private long jitter(long millis) {
+        if (ttlJitter <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ttlJitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+    }
+
+    /**
+     * XFetch：now - delta * beta * ln(rand) >= 软过期时间 时刷新，ln(rand)是负数，相当于随机把当前时间往后推
+     * 推多远和上次回源耗时成正比，回源越慢越早开始刷新
+     */
+    private boolean shouldRefresh(LocalDateTime softExpireTime, long delta) {
+        if (softExpireTime == null) {
+            //以前格式的缓存没有软过期时间，刷新一次换成新格式
+            return true;
+        }
+        long expireAt = softExpireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        double gap = xfetchBeta > 0 && delta > 0 ? -delta * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble()) : 0;
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
     /**
      * 逻辑过期解决缓存击穿问题
      */
     public <R,ID>R queryWithLogicalExpire(String prefix,ID id,Class<R> type,Function<ID,R> dataFallBack,Long time,TimeUnit unit){
-        //1.在redis缓存中查询信息
+        if (!mightContain(prefix, id)) {
+            return null;
+        }
         String key=prefix+id;
-        String stringJSON = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isBlank(stringJSON)) {
+        //0.查询一级缓存，一级缓存里也记着逻辑过期时间，过期了就去redis看有没有重建好的数据
+        LocalCache localCache = localCache(prefix);
+        if (localCache != null) {
+            LocalEntry entry = localCache.get(key);
+            if (entry == NULL_ENTRY) {
+                return null;
+            }
+            //同一个前缀下按其他方式查询写入的一级缓存没有逻辑过期时间，去redis里读
+            if (entry != null && entry.expireTime != null && entry.expireTime.isAfter(LocalDateTime.now())) {
+                return (R) entry.value;
+            }
+        }
+        long generation = localCache == null ? 0 : localCache.generation.get();
+        //1.在redis缓存中查询信息
+        byte[] raw = bytesRedisTemplate.opsForValue().get(key);
+        if (raw == null || raw.length == 0) {
             //缓存未命中,直接返回空值就行了，
             //因为逻辑过期每个redis缓存都是永久的，没有的话说明数据预热的时候就没有
+            recordL2(localCache, false);
             return null;
         }
-        //2.缓存命中，查看是否逻辑过期
-        //将json反序列化为RedisData对象，方便查看逻辑过期时间
-        RedisData redisData = JSONUtil.toBean(stringJSON, RedisData.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);//关键
+        recordL2(localCache, true);
+        //2.缓存命中，查看是否逻辑过期，过期时间在头部，不用先解析整个值
+        CacheValue<R> cacheValue = decode(key, raw, type, true);
+        R r;
+        LocalDateTime expireTime;
+        if (cacheValue != null && cacheValue.expireTime != null) {
+            r = cacheValue.value;
+            expireTime = cacheValue.expireTime;
+        } else {
+            //解码失败，先查数据库返回，再按已过期处理触发重建
+            r = dataFallBack.apply(id);
+            expireTime = LocalDateTime.MIN;
+        }
         if(expireTime.isAfter(LocalDateTime.now())){
             //未期了
+            putLocal(localCache, generation, key, new LocalEntry(r, raw.length, expireTime));
             return r;
         }
-        //3.过期了，尝试获取互斥锁去开启一个新线程查询数据库进行缓存重建
+        //3.过期了，交给重建线程池：同一个key本节点只排一个任务，任务里再获取互斥锁去查询数据库进行缓存重建
         String lockKey=LOCK_SHOP_KEY+id;
-        Boolean isLock = this.tryLock(lockKey);
-        if(isLock){
-            //获取到了互斥锁，开启新线程缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    R r_dataBack = dataFallBack.apply(id);
-                    //存入redis
-                    this.setWithLogicalExpire(key,r_dataBack,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unLock(lockKey);
-                }
-            });
-        }
+        cacheRebuildExecutor.submit(key, ()->{
+            if (!this.tryLock(lockKey)) {
+                //其他节点正在重建
+                return;
+            }
+            try {
+                R r_dataBack = dataFallBack.apply(id);
+                //存入redis
+                this.setWithLogicalExpire(key,r_dataBack,time,unit);
+            } finally {
+                unLock(lockKey);
+            }
+        });
         //4.无论是否获取了互斥锁，都要返回数据
         //走到这一步说明数据肯定是过期了的，即使进入锁的线程返回的也是旧数据，
         //只不过这个线程帮助其他线程缓存重建了
@@ -134,4 +554,194 @@ public class CacheClient {
     private void unLock(String lockKey){
         stringRedisTemplate.delete(lockKey);
     }
+
+    private boolean mightContain(String prefix, Object id) {
+        return cacheBloomFilters == null || cacheBloomFilters.mightContain(prefix, id);
+    }
+
+    /**
+     * 按头部格式编码缓存值
+     */
+    private byte[] encode(Object value, LocalDateTime expireTime) {
+        return encode(value, expireTime, -1);
+    }
+
+    /**
+     * @param delta 回源耗时，大于等于0时写格式版本2
+     */
+    private byte[] encode(Object value, LocalDateTime expireTime, long delta) {
+        CacheCodec codec = codecsByType.computeIfAbsent(value.getClass(), this::selectCodec);
+        CacheBuffer buffer = new CacheBuffer(256);
+        buffer.writeByte(delta >= 0 ? FORMAT_V2 : FORMAT_V1);
+        buffer.writeByte(codec.id());
+        buffer.writeByte(codec.version());
+        buffer.writeFixedLong(expireTime == null ? 0 : expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        if (delta >= 0) {
+            buffer.writeVarLong(delta);
+        }
+        codec.encode(value, buffer);
+        return buffer.toByteArray();
+    }
+
+    private CacheCodec selectCodec(Class<?> type) {
+        if ("binary".equals(codecMode) && cacheCodecs != null) {
+            for (CacheCodec codec : cacheCodecs) {
+                if (codec.id() != JsonCacheCodec.ID && codec.supports(type)) {
+                    return codec;
+                }
+            }
+        }
+        return jsonCodec;
+    }
+
+    /**
+     * 解码缓存值，兼容头部格式和以前直接存的JSON，解码失败返回null
+     * @param logicalExpire 是否是逻辑过期的缓存，旧JSON格式的逻辑过期缓存外面包了一层RedisData
+     */
+    private <R> CacheValue<R> decode(String key, byte[] raw, Class<R> type, boolean logicalExpire) {
+        try {
+            if (raw[0] != FORMAT_V1 && raw[0] != FORMAT_V2) {
+                //以前直接存的JSON
+                String json = new String(raw, StandardCharsets.UTF_8);
+                if (!logicalExpire) {
+                    return new CacheValue<>(JSONUtil.toBean(json, type), null);
+                }
+                RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+                return new CacheValue<>(JSONUtil.toBean((JSONObject) redisData.getData(), type), redisData.getExpireTime());
+            }
+            CacheBuffer buffer = new CacheBuffer(raw, 1);
+            CacheCodec codec = codecsById[buffer.readByte()];
+            if (codec == null) {
+                throw new IllegalStateException("未知的缓存编解码器");
+            }
+            int version = buffer.readByte();
+            long expireAt = buffer.readFixedLong();
+            long delta = raw[0] == FORMAT_V2 ? buffer.readVarLong() : 0;
+            R value = codec.decode(buffer, type, version);
+            return new CacheValue<>(value, expireAt == 0 ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()), delta);
+        } catch (Exception e) {
+            log.warn("缓存值解码失败，key：{}", key, e);
+            return null;
+        }
+    }
+
+    private static class CacheValue<R> {
+        private final R value;
+        /**
+         * 逻辑过期时间，没有则为null
+         */
+        private final LocalDateTime expireTime;
+        /**
+         * 上次回源耗时毫秒，只有格式版本2有
+         */
+        private final long delta;
+
+        private CacheValue(R value, LocalDateTime expireTime) {
+            this(value, expireTime, 0);
+        }
+
+        private CacheValue(R value, LocalDateTime expireTime, long delta) {
+            this.value = value;
+            this.expireTime = expireTime;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * 前缀对应的一级缓存，第一次用到时创建；关闭一级缓存时返回null
+     */
+    private LocalCache localCache(String prefix) {
+        if (!localEnabled) {
+            return null;
+        }
+        return localCaches.computeIfAbsent(prefix, this::createLocalCache);
+    }
+
+    private LocalCache createLocalCache(String prefix) {
+        Cache<String, LocalEntry> cache = Caffeine.newBuilder()
+                .maximumWeight(localMaxWeight)
+                .weigher((String key, LocalEntry entry) -> entry.weight)
+                .expireAfterWrite(localExpireAfterWriteMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        LocalCache localCache = new LocalCache(cache);
+        //一级、二级缓存各自的命中率，以及caffeine自带的大小、淘汰等指标
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "cache.l1", "prefix", prefix);
+        meterRegistry.gauge("cache.hit.ratio", Tags.of("prefix", prefix, "level", "l1"), localCache,
+                c -> ratio(c.l1Hits.sum(), c.l1Misses.sum()));
+        meterRegistry.gauge("cache.hit.ratio", Tags.of("prefix", prefix, "level", "l2"), localCache,
+                c -> ratio(c.l2Hits.sum(), c.l2Misses.sum()));
+        return localCache;
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private void recordL2(LocalCache localCache, boolean hit) {
+        if (localCache != null) {
+            (hit ? localCache.l2Hits : localCache.l2Misses).increment();
+        }
+    }
+
+    /**
+     * 写入一级缓存；读redis期间收到过失效消息的话不写，避免把旧值放回一级缓存
+     */
+    private void putLocal(LocalCache localCache, long generation, String key, LocalEntry entry) {
+        if (localCache != null && localCache.generation.get() == generation) {
+            localCache.cache.put(key, entry);
+        }
+    }
+
+    private static class LocalCache {
+        private final Cache<String, LocalEntry> cache;
+        /**
+         * 每收到一次失效消息+1
+         */
+        private final AtomicLong generation = new AtomicLong();
+        private final LongAdder l1Hits = new LongAdder();
+        private final LongAdder l1Misses = new LongAdder();
+        private final LongAdder l2Hits = new LongAdder();
+        private final LongAdder l2Misses = new LongAdder();
+
+        private LocalCache(Cache<String, LocalEntry> cache) {
+            this.cache = cache;
+        }
+
+        private LocalEntry get(String key) {
+            LocalEntry entry = cache.getIfPresent(key);
+            (entry != null ? l1Hits : l1Misses).increment();
+            return entry;
+        }
+
+        private void evict(String key) {
+            generation.incrementAndGet();
+            cache.invalidate(key);
+        }
+    }
+
+    private static class LocalEntry {
+        private final Object value;
+        private final int weight;
+        /**
+         * 逻辑过期（软过期）时间，只有逻辑过期和软过期的缓存才有
+         */
+        private final LocalDateTime expireTime;
+        /**
+         * 上次回源耗时毫秒，只有软过期的缓存才有
+         */
+        private final long delta;
+
+        private LocalEntry(Object value, int weight, LocalDateTime expireTime) {
+            this(value, weight, expireTime, 0);
+        }
+
+        private LocalEntry(Object value, int weight, LocalDateTime expireTime, long delta) {
+            this.value = value;
+            this.weight = weight;
+            this.expireTime = expireTime;
+            this.delta = delta;
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient缓存值的编解码器
+ * 每个编解码器有一个固定的id，写入redis的值头部记录编解码器id和schema版本，读的时候按头部找到对应的编解码器，
+ * 所以新增编解码器或者升级schema版本后，旧格式的缓存仍然能读出来
+ */
+public interface CacheCodec {
+    /**
+     * 编解码器id，写进缓存值头部，确定之后不能修改
+     */
+    byte id();
+
+    /**
+     * 当前写入使用的schema版本
+     */
+    int version();
+
+    /**
+     * 是否支持该类型
+     */
+    boolean supports(Class<?> type);
+
+    /**
+     * 编码，结果追加到buffer
+     */
+    void encode(Object value, CacheBuffer buffer);
+
+    /**
+     * 按写入时的schema版本解码，遇到不认识的版本抛出IllegalStateException
+     */
+    <R> R decode(CacheBuffer buffer, Class<R> type, int version);
+}
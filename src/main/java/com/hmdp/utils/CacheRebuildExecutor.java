@@ -0,0 +1,251 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存重建的公共线程池，代替各处自己new的固定线程池
+ * 1.按缓存key去重：同一个key已经在排队或者正在重建时不再提交，只记一次请求
+ * 2.热点优先：排队期间被请求的次数越多越先执行，次数每翻一倍重新排一次队
+ * 3.队列有上限，满了直接拒绝，调用方继续返回旧值
+ * 4.排队超时的任务直接丢弃，执行超时的任务会被中断
+ * 5.关闭时等正在执行和排队的任务跑完，超时后强制中断
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+    private final MeterRegistry meterRegistry;
+    /**
+     * 重建线程数
+     */
+    private final int threads;
+    /**
+     * 排队任务数上限
+     */
+    private final int queueCapacity;
+    /**
+     * 从提交到执行完的最长时间
+     */
+    private final long timeoutMs;
+    /**
+     * 关闭时等待任务执行完的最长时间
+     */
+    private final long shutdownTimeoutMs;
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService timeoutScheduler;
+    /**
+     * 缓存key -> 排队或者正在执行的任务
+     */
+    private final Map<String, RebuildTask> tasks = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private Timer latency;
+    private Timer queueWait;
+    private Counter deduplicated;
+    private Counter rejectedFull;
+    private Counter rejectedShutdown;
+    private Counter timeoutQueued;
+    private Counter timeoutRunning;
+    private Counter failed;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry,
+                                @Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                @Value("${hmdp.cache.rebuild.timeout-ms:5000}") long timeoutMs,
+                                @Value("${hmdp.cache.rebuild.shutdown-timeout-ms:10000}") long shutdownTimeoutMs) {
+        this.meterRegistry = meterRegistry;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.timeoutMs = timeoutMs;
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet()));
+        //重新排队时直接操作队列，线程要先全部启动
+        executor.prestartAllCoreThreads();
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-rebuild-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("cache.rebuild.queue", queued, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        latency = Timer.builder("cache.rebuild.latency").publishPercentiles(0.5, 0.99).register(meterRegistry);
+        queueWait = Timer.builder("cache.rebuild.queue.wait").register(meterRegistry);
+        deduplicated = Counter.builder("cache.rebuild.deduplicated").register(meterRegistry);
+        rejectedFull = Counter.builder("cache.rebuild.rejected").tag("reason", "full").register(meterRegistry);
+        rejectedShutdown = Counter.builder("cache.rebuild.rejected").tag("reason", "shutdown").register(meterRegistry);
+        timeoutQueued = Counter.builder("cache.rebuild.timeout").tag("stage", "queued").register(meterRegistry);
+        timeoutRunning = Counter.builder("cache.rebuild.timeout").tag("stage", "running").register(meterRegistry);
+        failed = Counter.builder("cache.rebuild.failed").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        //不再接收新任务，排队的任务继续执行
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建线程池关闭超时，剩余{}个任务未执行", executor.shutdownNow().size());
+        }
+        timeoutScheduler.shutdownNow();
+    }
+
+    /**
+     * 提交一个key的重建任务
+     * @return true表示新提交了任务；同一个key已经有任务、队列已满或者已经关闭时返回false
+     */
+    public boolean submit(String key, Runnable rebuild) {
+        //1.去重，已经有任务的key只记一次请求，请求次数每翻一倍重新排一次队
+        RebuildTask existing = tasks.get(key);
+        if (existing != null) {
+            deduplicated.increment();
+            int hits = existing.hits.incrementAndGet();
+            if (Integer.bitCount(hits) == 1) {
+                reprioritize(existing, hits);
+            }
+            return false;
+        }
+        if (executor.isShutdown()) {
+            rejectedShutdown.increment();
+            return false;
+        }
+        //2.队列满了直接拒绝
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            rejectedFull.increment();
+            return false;
+        }
+        RebuildTask task = new RebuildTask(key, rebuild);
+        if (tasks.putIfAbsent(key, task) != null) {
+            //并发提交，别的线程先放进去了
+            queued.decrementAndGet();
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(task);
+        } catch (Exception e) {
+            tasks.remove(key, task);
+            queued.decrementAndGet();
+            rejectedShutdown.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 排队中的任务数
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * 把任务从队列里拿出来，按新的请求次数重新放回去；已经开始执行的任务不处理
+     */
+    private void reprioritize(RebuildTask task, int hits) {
+        if (executor.getQueue().remove(task)) {
+            task.priority = hits;
+            executor.getQueue().offer(task);
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final Runnable rebuild;
+        private final long seq = sequence.incrementAndGet();
+        private final long submitNanos = System.nanoTime();
+        private final AtomicInteger hits = new AtomicInteger(1);
+        /**
+         * 只在任务不在队列里的时候修改
+         */
+        private volatile int priority = 1;
+        /**
+         * 正在执行的线程，执行完置为null，和超时中断互斥
+         */
+        private Thread runner;
+
+        private RebuildTask(String key, Runnable rebuild) {
+            this.key = key;
+            this.rebuild = rebuild;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            long waitNanos = System.nanoTime() - submitNanos;
+            queueWait.record(waitNanos, TimeUnit.NANOSECONDS);
+            try {
+                //1.排队超时，调用方早就返回旧值了，下次请求会重新提交
+                long remainingMs = timeoutMs - TimeUnit.NANOSECONDS.toMillis(waitNanos);
+                if (remainingMs <= 0) {
+                    timeoutQueued.increment();
+                    return;
+                }
+                //2.执行超时中断
+                synchronized (this) {
+                    runner = Thread.currentThread();
+                }
+                ScheduledFuture<?> timeout = timeoutScheduler.schedule(this::interrupt, remainingMs, TimeUnit.MILLISECONDS);
+                long start = System.nanoTime();
+                try {
+                    rebuild.run();
+                } catch (Exception e) {
+                    failed.increment();
+                    log.warn("缓存重建失败，key：{}", key, e);
+                } finally {
+                    latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    timeout.cancel(false);
+                    synchronized (this) {
+                        runner = null;
+                    }
+                    //清掉可能残留的中断标记，不影响下一个任务
+                    Thread.interrupted();
+                }
+            } finally {
+                tasks.remove(key, this);
+            }
+        }
+
+        private synchronized void interrupt() {
+            if (runner != null) {
+                timeoutRunning.increment();
+                log.warn("缓存重建超时，key：{}", key);
+                runner.interrupt();
+            }
+        }
+
+        /**
+         * 请求次数多的先执行，相同的按提交顺序
+         */
+        @Override
+        public int compareTo(RebuildTask other) {
+            int byPriority = Integer.compare(other.priority, priority);
+            return byPriority != 0 ? byPriority : Long.compare(seq, other.seq);
+        }
+    }
+}
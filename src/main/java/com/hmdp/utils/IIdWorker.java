@@ -0,0 +1,12 @@
+package com.hmdp.utils;
+
+public interface IIdWorker {
+
+    /**
+     * 生成全局唯一id，高32位是从BEGIN_TIMESTAMP开始的秒数
+     * @param keyPrefix 业务前缀
+     * @return 全局唯一、按时间递增的id
+     *
+     * */
+    Long nextId(String keyPrefix);
+}
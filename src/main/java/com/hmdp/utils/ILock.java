@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
     /**
@@ -10,6 +12,26 @@ public interface ILock {
      * */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 尝试获取锁，获取不到时最多等待waitTime
+     * @param waitTime 最长等待时间，0表示只尝试一次
+     * @param leaseTime 锁持有的超时时间，-1表示由看门狗自动续期直到释放
+     * @param unit 时间单位
+     * @return true 代表获取锁成功；false 代表等待超时
+     * 默认实现是每30毫秒重试一次，只适合不支持等待通知的锁
+     */
+    default boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        long timeoutSec = leaseTime > 0 ? Math.max(1, unit.toSeconds(leaseTime)) : 30;
+        while (!tryLock(timeoutSec)) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(30);
+        }
+        return true;
+    }
+
     /**
      * 释放锁
      *
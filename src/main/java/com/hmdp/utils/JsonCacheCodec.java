@@ -0,0 +1,39 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON编解码器，支持所有类型，没有专门的二进制编解码器的类型都用它
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+    public static final byte ID = 0;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public int version() {
+        return 1;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return true;
+    }
+
+    @Override
+    public void encode(Object value, CacheBuffer buffer) {
+        buffer.writeBytes(JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public <R> R decode(CacheBuffer buffer, Class<R> type, int version) {
+        return JSONUtil.toBean(buffer.readRemainingString(), type);
+    }
+}
@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 接口限流，由RateLimitInterceptor在进入controller之前用令牌桶判断
+ * 同一个接口可以叠加多条规则，例如全局限流 + 每个用户限流，任意一条不通过就拒绝
+ * 注解上的速率是默认值，运行时可以通过RateLimitRules按name覆盖，不需要重启
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(RateLimit.List.class)
+public @interface RateLimit {
+    /**
+     * 规则名称，也是redis中令牌桶key和运行时配置的字段名
+     */
+    String name();
+
+    /**
+     * 限流维度
+     */
+    Type type() default Type.USER;
+
+    /**
+     * 每秒生成的令牌数
+     */
+    double permitsPerSecond();
+
+    /**
+     * 桶容量，即允许的突发请求数，默认等于每秒令牌数
+     */
+    int burst() default 0;
+
+    enum Type {
+        /**
+         * 每个登录用户一个桶
+         */
+        USER,
+        /**
+         * 每个客户端ip一个桶
+         */
+        IP,
+        /**
+         * 所有请求共用一个桶
+         */
+        GLOBAL
+    }
+
+    @Documented
+    @Target(ElementType.METHOD)
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface List {
+        RateLimit[] value();
+    }
+}
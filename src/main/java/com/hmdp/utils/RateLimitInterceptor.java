@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.Validator;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 第三层拦截器，处理@RateLimit限流
+ * 令牌桶在redis中用lua脚本原子计算，所有节点共享同一个桶
+ * 被拒绝时脚本返回下一个令牌的等待时间，本地记下这个时间点，在此之前同一个桶的请求直接拒绝，不再访问redis
+ */
+@Slf4j
+public class RateLimitInterceptor implements HandlerInterceptor {
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rateLimit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+    /**
+     * 本地拒绝表超过这个大小时清理过期条目
+     */
+    private static final int BLOCKED_CLEAN_THRESHOLD = 10000;
+    private static final String REJECT_BODY = JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后再试"));
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RateLimitRules rateLimitRules;
+    private final MeterRegistry meterRegistry;
+    /**
+     * 受信任的反向代理地址，支持单个ip和IPv4的CIDR（如 10.0.0.0/8）
+     */
+    private final List<String> trustedProxies;
+    /**
+     * 令牌桶key -> 本地拒绝到的时间戳
+     */
+    private final Map<String, Long> blockedUntil = new ConcurrentHashMap<>();
+
+    public RateLimitInterceptor(StringRedisTemplate stringRedisTemplate, RateLimitRules rateLimitRules,
+                                MeterRegistry meterRegistry, String... trustedProxies) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.rateLimitRules = rateLimitRules;
+        this.meterRegistry = meterRegistry;
+        this.trustedProxies = Arrays.stream(trustedProxies).map(String::trim).filter(StrUtil::isNotEmpty)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod) || !rateLimitRules.isEnabled()) {
+            return true;
+        }
+        RateLimit[] rateLimits = ((HandlerMethod) handler).getMethod().getAnnotationsByType(RateLimit.class);
+        for (RateLimit rateLimit : rateLimits) {
+            if (!tryAcquire(rateLimit, request)) {
+                response.setStatus(429);
+                response.setContentType("application/json;charset=UTF-8");
+                response.getOutputStream().write(REJECT_BODY.getBytes(StandardCharsets.UTF_8));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean tryAcquire(RateLimit rateLimit, HttpServletRequest request) {
+        RateLimitRules.Rule rule = rateLimitRules.resolve(rateLimit);
+        if (rule.isDisabled()) {
+            return true;
+        }
+        String key = RATE_LIMIT_KEY + rateLimit.name() + ":" + dimension(rateLimit.type(), request);
+        //本地拒绝表只在本节点用，用本地时钟；令牌桶的时间由redis的TIME计算，各节点时钟偏差不会多发或少发令牌
+        long now = System.currentTimeMillis();
+        //1.本地预过滤：桶在这个时间点之前都不会有令牌
+        Long until = blockedUntil.get(key);
+        if (until != null) {
+            if (now < until) {
+                meterRegistry.counter("rate.limit.rejected", "name", rateLimit.name(), "by", "local").increment();
+                return false;
+            }
+            blockedUntil.remove(key, until);
+        }
+        //2.redis令牌桶
+        Long wait;
+        try {
+            wait = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, Collections.singletonList(key),
+                    String.valueOf(rule.getPermitsPerSecond()), String.valueOf(rule.getBurst()));
+        } catch (Exception e) {
+            //限流依赖的redis出问题时放行，不能因为限流把正常请求全部拒绝
+            log.warn("限流脚本执行失败，放行请求，规则：{}", rateLimit.name(), e);
+            return true;
+        }
+        if (wait == null || wait <= 0) {
+            return true;
+        }
+        //3.被拒绝，记下下一个令牌的时间点
+        if (blockedUntil.size() > BLOCKED_CLEAN_THRESHOLD) {
+            blockedUntil.values().removeIf(t -> t < now);
+        }
+        blockedUntil.put(key, now + wait);
+        meterRegistry.counter("rate.limit.rejected", "name", rateLimit.name(), "by", "redis").increment();
+        return false;
+    }
+
+    /**
+     * 令牌桶的维度：用户id、客户端ip或者全局
+     */
+    private String dimension(RateLimit.Type type, HttpServletRequest request) {
+        switch (type) {
+            case USER:
+                UserDTO user = UserHolder.getUser();
+                //未登录的请求按ip限流
+                return user != null ? user.getId().toString() : "ip:" + clientIp(request);
+            case IP:
+                return clientIp(request);
+            default:
+                return "all";
+        }
+    }
+
+    /**
+     * 客户端ip：直接来源是受信任的代理（nginx）时才看X-Forwarded-For，从右往左跳过受信任的代理，取第一个不受信任的地址
+     * 客户端可以随便填X-Forwarded-For，直接访问时按它限流相当于每次换一个ip，等于没有限流
+     */
+    private String clientIp(HttpServletRequest request) {
+        String remoteAddr = request.getRemoteAddr();
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isBlank(forwarded) || !isTrustedProxy(remoteAddr)) {
+            return remoteAddr;
+        }
+        List<String> hops = StrUtil.split(forwarded, ',', true, true);
+        for (int i = hops.size() - 1; i > 0; i--) {
+            if (!isTrustedProxy(hops.get(i))) {
+                return hops.get(i);
+            }
+        }
+        return hops.isEmpty() ? remoteAddr : hops.get(0);
+    }
+
+    private boolean isTrustedProxy(String ip) {
+        for (String proxy : trustedProxies) {
+            if (proxy.contains("/") ? Validator.isIpv4(ip) && NetUtil.isInRange(ip, proxy) : proxy.equals(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
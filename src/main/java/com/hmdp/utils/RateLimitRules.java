@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_RULES_CHANNEL;
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_RULES_KEY;
+
+/**
+ * 限流规则的运行时配置
+ * 规则保存在redis的hash limit:rules 中，字段是@RateLimit的name，值是 "每秒令牌数,桶容量"，每秒令牌数<=0表示关闭这条规则
+ * 修改后通过发布订阅通知所有节点重新加载，同时定时全量加载一次，防止漏收消息
+ * 手动修改：HSET limit:rules seckill "500,500" 然后 PUBLISH limit:rules:changed seckill
+ */
+@Slf4j
+@Component
+public class RateLimitRules implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    /**
+     * 限流总开关
+     */
+    @Value("${hmdp.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * name -> 覆盖注解的规则，整体替换，读的时候不加锁
+     */
+    private volatile Map<String, Rule> overrides = new HashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RATE_LIMIT_RULES_CHANNEL));
+        reload();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 当前生效的规则：有运行时配置就用配置，否则用注解上的默认值
+     */
+    public Rule resolve(RateLimit rateLimit) {
+        Rule rule = overrides.get(rateLimit.name());
+        if (rule != null) {
+            return rule;
+        }
+        int burst = rateLimit.burst() > 0 ? rateLimit.burst() : (int) Math.max(1, Math.ceil(rateLimit.permitsPerSecond()));
+        return new Rule(rateLimit.permitsPerSecond(), burst);
+    }
+
+    /**
+     * 修改规则并通知所有节点
+     */
+    public void setRule(String name, double permitsPerSecond, int burst) {
+        stringRedisTemplate.opsForHash().put(RATE_LIMIT_RULES_KEY, name, permitsPerSecond + "," + burst);
+        stringRedisTemplate.convertAndSend(RATE_LIMIT_RULES_CHANNEL, name);
+    }
+
+    /**
+     * 删除规则，恢复注解上的默认值
+     */
+    public void removeRule(String name) {
+        stringRedisTemplate.opsForHash().delete(RATE_LIMIT_RULES_KEY, name);
+        stringRedisTemplate.convertAndSend(RATE_LIMIT_RULES_CHANNEL, name);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.rate-limit.refresh-ms:30000}")
+    public void reload() {
+        Map<Object, Object> entries;
+        try {
+            entries = stringRedisTemplate.opsForHash().entries(RATE_LIMIT_RULES_KEY);
+        } catch (Exception e) {
+            //redis不可用时保留上一次的规则
+            log.warn("加载限流规则失败", e);
+            return;
+        }
+        Map<String, Rule> rules = new HashMap<>();
+        entries.forEach((name, value) -> {
+            String[] parts = value.toString().split(",");
+            try {
+                rules.put(name.toString(), new Rule(Double.parseDouble(parts[0].trim()), Integer.parseInt(parts[1].trim())));
+            } catch (RuntimeException e) {
+                log.error("无法解析的限流规则：{}={}", name, value);
+            }
+        });
+        overrides = rules;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        reload();
+    }
+
+    public static class Rule {
+        private final double permitsPerSecond;
+        private final int burst;
+
+        public Rule(double permitsPerSecond, int burst) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.burst = burst;
+        }
+
+        public double getPermitsPerSecond() {
+            return permitsPerSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        /**
+         * 每秒令牌数<=0表示不限流
+         */
+        public boolean isDisabled() {
+            return permitsPerSecond <= 0;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * 一个key前缀的布隆过滤器
+ * 位图保存在redis中，本地保存一份相同布局的副本，判断是否存在只查本地，不访问redis
+ * redis位图的第i位是第i/8个字节的从高到低第i%8位，本地副本按同样的顺序存进long数组，方便直接从GET的结果加载
+ * 位图大小和哈希函数个数写在key里，修改容量或误判率后会换一个新key重建
+ */
+public class RedisBloomFilter {
+    /**
+     * redis位图最大 2^32 位
+     */
+    private static final long MAX_BITS = 1L << 32;
+    /**
+     * 重建时和redis位图合并的最大尝试次数
+     */
+    private static final int MAX_MERGE_ATTEMPTS = 10;
+
+    private final String prefix;
+    private final long expectedInsertions;
+    private final double fpp;
+    private final long bitSize;
+    private final int hashFunctions;
+    private final String key;
+    private final byte[] rawKey;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final AtomicLongArray words;
+    /**
+     * 从数据库重建完成之前不拦截任何id
+     */
+    private volatile boolean ready;
+    private final LongAdder rejected = new LongAdder();
+
+    public RedisBloomFilter(String prefix, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        this.prefix = prefix;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        //m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+        this.bitSize = Math.min(MAX_BITS, Math.max(64, (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)))));
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        this.key = BLOOM_KEY + prefix + bitSize + ":" + hashFunctions;
+        this.rawKey = key.getBytes(StandardCharsets.UTF_8);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.words = new AtomicLongArray((int) ((bitSize + 63) / 64));
+    }
+
+    /**
+     * 是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        for (long offset : offsets(id)) {
+            if ((words.get((int) (offset >>> 6)) & mask(offset)) == 0) {
+                rejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增数据后调用：写redis位图和本地副本，再通知其他节点
+     */
+    public void add(Object id) {
+        long[] offsets = offsets(id);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+        addLocal(offsets);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, prefix + " " + id);
+    }
+
+    /**
+     * 其他节点新增的id，只更新本地副本
+     */
+    void addLocal(Object id) {
+        addLocal(offsets(id));
+    }
+
+    /**
+     * 用全表的id重建：在本地算好位图，和redis中的位图按位或（不丢掉其他节点在重建期间新增的id），再加载回本地
+     * 按位或在客户端做：WATCH位图后GET、本地或、MULTI/EXEC写回，期间其他节点SETBIT会让EXEC失败，重新读取再或一次
+     */
+    public void rebuild(Iterable<?> ids) {
+        byte[] bits = new byte[(int) ((bitSize + 7) / 8)];
+        for (Object id : ids) {
+            for (long offset : offsets(id)) {
+                bits[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+        for (int attempt = 0; ; attempt++) {
+            if (attempt >= MAX_MERGE_ATTEMPTS) {
+                throw new IllegalStateException("布隆过滤器位图合并冲突次数过多：" + key);
+            }
+            Boolean merged = stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> {
+                connection.watch(rawKey);
+                byte[] current = connection.get(rawKey);
+                byte[] result = bits.clone();
+                if (current != null) {
+                    for (int i = 0; i < Math.min(current.length, result.length); i++) {
+                        result[i] |= current[i];
+                    }
+                }
+                connection.multi();
+                connection.set(rawKey, result);
+                List<Object> exec = connection.exec();
+                return exec != null && !exec.isEmpty();
+            });
+            if (Boolean.TRUE.equals(merged)) {
+                break;
+            }
+        }
+        sync();
+        ready = true;
+    }
+
+    /**
+     * 从redis加载位图，和本地副本按位或，兜底漏收的新增消息
+     */
+    public void sync() {
+        byte[] bits = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (bits == null) {
+            return;
+        }
+        int length = Math.min(bits.length, words.length() * 8);
+        for (int w = 0; w * 8 < length; w++) {
+            long word = 0;
+            for (int b = 0; b < 8; b++) {
+                int i = w * 8 + b;
+                word = (word << 8) | (i < length ? bits[i] & 0xFF : 0);
+            }
+            if (word != 0) {
+                words.accumulateAndGet(w, word, (x, y) -> x | y);
+            }
+        }
+    }
+
+    /**
+     * 按当前置位比例估算的误判率 (置位比例)^k
+     */
+    public double estimatedFpp() {
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / bitSize, hashFunctions);
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public double getFpp() {
+        return fpp;
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 被拦截的id数量
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private void addLocal(long[] offsets) {
+        for (long offset : offsets) {
+            long mask = mask(offset);
+            words.accumulateAndGet((int) (offset >>> 6), mask, (x, y) -> x | y);
+        }
+    }
+
+    /**
+     * 位在long中的掩码，long的最高位对应redis中编号最小的位
+     */
+    private static long mask(long offset) {
+        return 1L << (63 - (offset & 63));
+    }
+
+    /**
+     * 对id的字符串做一次128位murmur哈希，用 h1 + i*h2 模拟k个哈希函数
+     */
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[hashFunctions];
+        long combined = hash[0];
+        for (int i = 0; i < hashFunctions; i++) {
+            combined += hash[1];
+            offsets[i] = (combined & Long.MAX_VALUE) % bitSize;
+        }
+        return offsets;
+    }
+}
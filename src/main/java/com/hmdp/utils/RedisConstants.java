@@ -9,15 +9,44 @@ public class RedisConstants {
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
+    public static final Long CACHE_SHOP_HARD_TTL = 120L;
     public static final String CACHE_SHOP_TYPE = "cache:shopType:";
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shopHash:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 600L;
+    public static final String ORDER_STATUS_CREATED = "CREATED";
+    public static final String ORDER_STATUS_FAILED = "FAILED";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders:";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_LEASE_KEY = "lock:";
+    public static final Long SECKILL_ORDER_LEASE_TTL = 30000L;
+    public static final String ID_WORKER_LEASE_KEY = "id:worker:";
+    public static final String LOCK_KEY = "lock:";
+    public static final String LOCK_UNLOCK_CHANNEL = "lock:unlock";
+    public static final String RW_LOCK_KEY = "rwlock:";
+    public static final String SEMAPHORE_KEY = "semaphore:";
+    public static final String LATCH_KEY = "latch:";
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String RATE_LIMIT_KEY = "limit:";
+    public static final String RATE_LIMIT_RULES_KEY = "limit:rules";
+    public static final String RATE_LIMIT_RULES_CHANNEL = "limit:rules:changed";
 }
@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LATCH_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 分布式倒计时门闩，通过RedisLockClient.getCountDownLatch获取
+ * 计数保存在一个带过期时间的string中，归零时删除key并通知所有等待的线程
+ */
+public class RedisCountDownLatch {
+    private static final DefaultRedisScript<Long> COUNT_DOWN_SCRIPT;
+    static {
+        COUNT_DOWN_SCRIPT = new DefaultRedisScript<>();
+        COUNT_DOWN_SCRIPT.setLocation(new ClassPathResource("latchCountDown.lua"));
+        COUNT_DOWN_SCRIPT.setResultType(Long.class);
+    }
+    /**
+     * 没收到通知时重新检查计数的间隔，毫秒
+     */
+    private static final long RECHECK_MS = 1000;
+
+    private final String key;
+    private final RedisLockClient client;
+
+    RedisCountDownLatch(String name, RedisLockClient client) {
+        this.key = LATCH_KEY + name;
+        this.client = client;
+    }
+
+    /**
+     * 设置计数，门闩已经存在时不覆盖
+     * @param ttl 门闩的有效期，到期后等待的线程视为已经放行
+     * @return 是否设置成功
+     */
+    public boolean trySetCount(long count, long ttl, TimeUnit unit) {
+        return BooleanUtil.isTrue(client.getStringRedisTemplate().opsForValue()
+                .setIfAbsent(key, String.valueOf(count), ttl, unit));
+    }
+
+    /**
+     * 计数-1
+     * @return 剩余计数
+     */
+    public long countDown() {
+        Long count = client.getStringRedisTemplate().execute(COUNT_DOWN_SCRIPT, Arrays.asList(key, LOCK_UNLOCK_CHANNEL));
+        return count == null ? 0 : count;
+    }
+
+    public long getCount() {
+        String count = client.getStringRedisTemplate().opsForValue().get(key);
+        return count == null ? 0 : Math.max(0, Long.parseLong(count));
+    }
+
+    /**
+     * 等待计数归零
+     * @return false 表示等待超时
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return client.await(key, unit.toNanos(timeout), () -> getCount() <= 0 ? null : RECHECK_MS);
+    }
+}
@@ -1,29 +1,81 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 基于redis的全局id生成器
+ * incr模式：每个id一次INCR
+ * segment模式：每个节点一次INCRBY租下一段序列号，在本地无锁发放，剩余量低于水位线时异步预取下一段
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
+public class RedisIdWorker implements IIdWorker {
+    public static final long BEGIN_TIMESTAMP = 1640995200L;
     private static int COUNT_BITS = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * id生成模式：incr 或 segment
+     */
+    @Value("${hmdp.id.mode:incr}")
+    private String mode;
+    /**
+     * segment模式下每次租用的序列号数量
+     */
+    @Value("${hmdp.id.segment-step:1000}")
+    private long segmentStep;
+    /**
+     * 当前号段剩余比例低于该值时预取下一段
+     */
+    @Value("${hmdp.id.segment-low-water:0.2}")
+    private double segmentLowWater;
+    /**
+     * 业务前缀 -> 号段
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
+    /**
+     * id高32位的时间戳：和最初的LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一样，把本地时间当成UTC换算成秒，
+     * 东八区比真实的epoch秒多8小时；库里已有的id都是这样算的，所有id生成器都要用这个方法，切换生成器之后id才是递增的
+     */
+    public static long timestamp(long epochMillis) {
+        return Math.floorDiv(epochMillis + TimeZone.getDefault().getOffset(epochMillis), 1000L) - BEGIN_TIMESTAMP;
+    }
+
+    @Override
     public Long nextId(String keyPrefix){
-        LocalDateTime now=LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long time=nowSecond-BEGIN_TIMESTAMP;
-        String format=now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        long millis=System.currentTimeMillis();
+        LocalDateTime now=LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        long time=timestamp(millis);
+        String format=now.format(DATE_FORMATTER);
+        if("segment".equals(mode)){
+            return time<<COUNT_BITS|nextSequence(keyPrefix,format);
+        }
         // Redis Incrby 命令将 key 中储存的数字加上指定的增量值。
         // 如果 key 不存在，那么 key 的值会先被初始化为 0 ，然后再执行 INCRBY 命令
         //format是一个很巧妙的后缀，结合keyPrefix(业务前缀)正好可以帮我们统计一天内某个业务产生的id需求量是多少
@@ -31,4 +83,89 @@ public class RedisIdWorker {
         return time<<COUNT_BITS|count;
     }
 
+    /**
+     * 从本地号段取一个序列号，号段用完或者跨天时切换到下一段
+     */
+    private long nextSequence(String keyPrefix, String date) {
+        SegmentBuffer buffer = segmentBuffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long seq = segment.cursor.getAndIncrement();
+                if (seq <= segment.max) {
+                    //剩余量低于水位线，异步预取下一段，每一段只预取一次
+                    if (segment.max - seq < segmentStep * segmentLowWater && buffer.next.get() == null) {
+                        CompletableFuture<Segment> future = new CompletableFuture<>();
+                        if (buffer.next.compareAndSet(null, future)) {
+                            prefetch(future, keyPrefix, date);
+                        }
+                    }
+                    return seq;
+                }
+            }
+            switchSegment(buffer, segment, keyPrefix, date);
+        }
+    }
+
+    private void prefetch(CompletableFuture<Segment> future, String keyPrefix, String date) {
+        SEGMENT_PREFETCH_EXECUTOR.execute(() -> {
+            try {
+                future.complete(leaseSegment(keyPrefix, date));
+            } catch (Exception e) {
+                log.warn("预取id号段失败，keyPrefix：{}", keyPrefix, e);
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * 切换号段：优先用预取好的下一段，预取失败或者已经跨天就同步租用
+     */
+    private void switchSegment(SegmentBuffer buffer, Segment exhausted, String keyPrefix, String date) {
+        synchronized (buffer) {
+            if (buffer.current != exhausted) {
+                //其他线程已经切换过了
+                return;
+            }
+            Segment next = null;
+            CompletableFuture<Segment> future = buffer.next.getAndSet(null);
+            if (future != null) {
+                try {
+                    next = future.join();
+                } catch (Exception e) {
+                    next = null;
+                }
+            }
+            if (next == null || !next.date.equals(date)) {
+                //日期变了，序列号要从新的一天的key里租
+                next = leaseSegment(keyPrefix, date);
+            }
+            buffer.current = next;
+        }
+    }
+
+    /**
+     * 一次INCRBY租下 [end-step+1, end] 这一段序列号
+     */
+    private Segment leaseSegment(String keyPrefix, String date) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + date, segmentStep);
+        return new Segment(date, end - segmentStep + 1, end);
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private final AtomicReference<CompletableFuture<Segment>> next = new AtomicReference<>();
+    }
+
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+
+        private Segment(String date, long min, long max) {
+            this.date = date;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
 }
@@ -0,0 +1,245 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.LOCK_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 可重入分布式锁的入口，getLock(name)拿到锁对象
+ * 这里集中管理所有锁共用的东西：
+ * 1.持有者标识：节点id + 每个线程一个随机串，不依赖Thread.getId()，线程池复用线程id、虚拟线程id重复时也不会串
+ * 2.看门狗：不指定租期时每 watchdogTimeout/3 续期一次，直到释放锁或者节点挂掉
+ * 3.等待通知：所有节点订阅同一个频道 lock:unlock，锁完全释放时发布锁的key，本节点等这把锁的线程被唤醒后重试
+ * 读写锁、信号量、倒计时门闩也在这里创建，共用同一套等待通知
+ */
+@Slf4j
+@Component
+public class RedisLockClient implements MessageListener {
+    static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrantLock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrantUnlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("reentrantRenew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+    private static final ThreadLocal<String> OWNER = ThreadLocal.withInitial(
+            () -> NODE_ID + ":" + UUID.randomUUID().toString(true));
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    /**
+     * 不指定租期时的默认租期，看门狗按这个时长续期
+     */
+    @Value("${hmdp.lock.watchdog-timeout-ms:30000}")
+    private long watchdogTimeoutMs = 30000;
+
+    /**
+     * 锁的key -> 本节点在等这把锁的线程
+     */
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+    /**
+     * 锁的key + 持有者 -> 看门狗续期任务
+     */
+    private final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+    private ScheduledExecutorService watchdog;
+
+    public RedisLockClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+    }
+
+    @PostConstruct
+    public void init() {
+        watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "redis-lock-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(LOCK_UNLOCK_CHANNEL));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        redisMessageListenerContainer.removeMessageListener(this);
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 获取一把可重入锁，key是 lock:name
+     */
+    public ILock getLock(String name) {
+        return new RedisReentrantLock(name, this);
+    }
+
+    /**
+     * 获取一把读写锁，key是 rwlock:name
+     */
+    public RedisReadWriteLock getReadWriteLock(String name) {
+        return new RedisReadWriteLock(name, this);
+    }
+
+    /**
+     * 获取一个带租期的信号量，key是 semaphore:name；同一个name在所有节点上要用相同的permits
+     */
+    public RedisSemaphore getSemaphore(String name, int permits) {
+        return new RedisSemaphore(name, permits, this);
+    }
+
+    /**
+     * 获取一个倒计时门闩，key是 latch:name
+     */
+    public RedisCountDownLatch getCountDownLatch(String name) {
+        return new RedisCountDownLatch(name, this);
+    }
+
+    StringRedisTemplate getStringRedisTemplate() {
+        return stringRedisTemplate;
+    }
+
+    long getWatchdogTimeoutMs() {
+        return watchdogTimeoutMs;
+    }
+
+    String currentOwner() {
+        return OWNER.get();
+    }
+
+    String nodeId() {
+        return NODE_ID;
+    }
+
+    /**
+     * 通用的等待流程，锁、信号量、门闩共用
+     * @param key 等待的key，释放时会在 lock:unlock 频道上发布这个key
+     * @param waitNanos 最长等待时间
+     * @param attempt 尝试一次，返回null表示成功，否则返回最多还要等多少毫秒（负数表示不确定，只能等通知或超时）
+     */
+    boolean await(String key, long waitNanos, Supplier<Long> attempt) throws InterruptedException {
+        long deadline = System.nanoTime() + waitNanos;
+        //1.先试一次，大多数情况下不需要登记等待
+        if (attempt.get() == null) {
+            return true;
+        }
+        if (waitNanos <= 0) {
+            return false;
+        }
+        //2.登记等待，先登记再试一次，避免错过登记之前发出的通知
+        Waiters entry = enter(key);
+        try {
+            while (true) {
+                Long ttl = attempt.get();
+                if (ttl == null) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                //3.阻塞到通知、ttl到期或者等待超时，三者取最早的
+                long waitNext = ttl >= 0 ? Math.min(TimeUnit.MILLISECONDS.toNanos(ttl), remaining) : remaining;
+                entry.latch.tryAcquire(waitNext, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            leave(key, entry);
+        }
+    }
+
+    /**
+     * 开始等待某把锁，返回的Waiters用完必须调用leave
+     */
+    Waiters enter(String key) {
+        return waiters.compute(key, (k, w) -> {
+            Waiters entry = w == null ? new Waiters() : w;
+            entry.count.incrementAndGet();
+            return entry;
+        });
+    }
+
+    void leave(String key, Waiters entry) {
+        waiters.computeIfPresent(key, (k, w) -> w == entry && w.count.decrementAndGet() == 0 ? null : w);
+    }
+
+    /**
+     * 第一次拿到锁时启动看门狗，重入时复用同一个任务
+     */
+    void scheduleRenewal(String key, String owner) {
+        scheduleRenewal(key, owner, RENEW_SCRIPT, Collections.singletonList(key));
+    }
+
+    /**
+     * 锁的结构不止一个key时（读写锁的读者到期时间）用自己的续期脚本，KEYS[1]是锁本身
+     */
+    void scheduleRenewal(String key, String owner, DefaultRedisScript<Long> renewScript, List<String> keys) {
+        long period = watchdogTimeoutMs / 3;
+        renewals.computeIfAbsent(key + "|" + owner, k -> watchdog.scheduleWithFixedDelay(() -> {
+            try {
+                Long renewed = stringRedisTemplate.execute(renewScript, keys,
+                        String.valueOf(watchdogTimeoutMs), owner);
+                if (renewed == null || renewed == 0) {
+                    //锁已经不是自己的了，停止续期
+                    cancelRenewal(key, owner);
+                }
+            } catch (Exception e) {
+                //redis暂时不可用时继续尝试，租期内恢复就不会丢锁
+                log.warn("锁续期失败：{}", key, e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS));
+    }
+
+    void cancelRenewal(String key, String owner) {
+        ScheduledFuture<?> future = renewals.remove(key + "|" + owner);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        Waiters entry = waiters.get(key);
+        if (entry != null) {
+            //唤醒等待的线程去重试，没抢到的会按剩余时间继续等
+            //互斥锁只唤醒一个；读写锁、信号量、门闩可能同时放行多个线程，全部唤醒
+            entry.latch.release(key.startsWith(LOCK_KEY) ? 1 : Math.max(1, entry.count.get()));
+        }
+    }
+
+    static class Waiters {
+        final Semaphore latch = new Semaphore(0);
+        final AtomicInteger count = new AtomicInteger();
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.RW_LOCK_KEY;
+
+/**
+ * 基于redis hash的读写锁，通过RedisLockClient.getReadWriteLock获取
+ * 读锁之间共享，写锁独占；读写锁都可重入，持有写锁时可以再加读锁（锁降级），持有读锁时不能加写锁
+ * 加锁、释放各是一个lua脚本，不指定租期时由看门狗续期
+ * 读锁共用一个key，每个读者的到期时间另外记在zset里，挂掉的读者到期后在下一次加锁时被清理
+ */
+public class RedisReadWriteLock {
+    private static final DefaultRedisScript<Long> READ_LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> WRITE_LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        READ_LOCK_SCRIPT = new DefaultRedisScript<>();
+        READ_LOCK_SCRIPT.setLocation(new ClassPathResource("rwReadLock.lua"));
+        READ_LOCK_SCRIPT.setResultType(Long.class);
+        WRITE_LOCK_SCRIPT = new DefaultRedisScript<>();
+        WRITE_LOCK_SCRIPT.setLocation(new ClassPathResource("rwWriteLock.lua"));
+        WRITE_LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("rwUnlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("rwRenew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String key;
+    /**
+     * 每个读者的到期时间，挂掉的读者按自己的租期被清理
+     */
+    private final String timeoutKey;
+    private final RedisLockClient client;
+    private final ILock readLock;
+    private final ILock writeLock;
+
+    RedisReadWriteLock(String name, RedisLockClient client) {
+        this.key = RW_LOCK_KEY + name;
+        this.timeoutKey = key + ":timeout";
+        this.client = client;
+        this.readLock = new Lock(READ_LOCK_SCRIPT, ":r");
+        this.writeLock = new Lock(WRITE_LOCK_SCRIPT, ":w");
+    }
+
+    public ILock readLock() {
+        return readLock;
+    }
+
+    public ILock writeLock() {
+        return writeLock;
+    }
+
+    private class Lock implements ILock {
+        private final DefaultRedisScript<Long> lockScript;
+        /**
+         * hash中的字段是 持有者 + 后缀
+         */
+        private final String suffix;
+
+        private Lock(DefaultRedisScript<Long> lockScript, String suffix) {
+            this.lockScript = lockScript;
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean tryLock(long timeoutSec) {
+            try {
+                return tryLock(0, timeoutSec, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+            String owner = client.currentOwner();
+            long lease = leaseTime > 0 ? unit.toMillis(leaseTime) : client.getWatchdogTimeoutMs();
+            return client.await(key, unit.toNanos(waitTime), () -> {
+                Long ttl = client.getStringRedisTemplate().execute(lockScript,
+                        Arrays.asList(key, timeoutKey), String.valueOf(lease), owner);
+                if (ttl == null && leaseTime <= 0) {
+                    client.scheduleRenewal(key, owner + suffix, RENEW_SCRIPT, Arrays.asList(key, timeoutKey));
+                }
+                return ttl;
+            });
+        }
+
+        @Override
+        public void unlock() {
+            String field = client.currentOwner() + suffix;
+            Long result = client.getStringRedisTemplate().execute(UNLOCK_SCRIPT,
+                    Arrays.asList(key, LOCK_UNLOCK_CHANNEL, timeoutKey), field);
+            if (result == null) {
+                client.cancelRenewal(key, field);
+                throw new IllegalMonitorStateException("当前线程没有持有锁：" + key);
+            }
+            if (result > 0) {
+                //1：锁已经删除；2：自己这一类锁全部释放，还有其他持有者
+                client.cancelRenewal(key, field);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.LOCK_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 基于redis hash的可重入锁，通过RedisLockClient.getLock获取
+ * hash的field是持有者标识，value是重入次数，同一个线程重复加锁只增加次数
+ * 等锁的线程不轮询redis，而是阻塞到锁释放的通知或者锁的剩余时间到期，再重试一次
+ */
+public class RedisReentrantLock implements ILock {
+    private final String key;
+    private final RedisLockClient client;
+    /**
+     * 持有者标识，默认每个线程一个；两级锁里是本地锁条目的标识，同节点的线程之间可以交接
+     */
+    private final Supplier<String> owner;
+    /**
+     * 本次持有锁使用的租期，解锁时用它刷新外层的租期
+     */
+    private final ThreadLocal<Long> leaseMs = new ThreadLocal<>();
+
+    RedisReentrantLock(String name, RedisLockClient client) {
+        this(name, client, client::currentOwner);
+    }
+
+    RedisReentrantLock(String name, RedisLockClient client, Supplier<String> owner) {
+        this.key = LOCK_KEY + name;
+        this.client = client;
+        this.owner = owner;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        try {
+            return tryLock(0, timeoutSec, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        String owner = this.owner.get();
+        long lease = leaseTime > 0 ? unit.toMillis(leaseTime) : client.getWatchdogTimeoutMs();
+        boolean watchdog = leaseTime <= 0;
+        return client.await(key, unit.toNanos(waitTime), () -> acquire(owner, lease, watchdog));
+    }
+
+    /**
+     * 执行一次加锁脚本，成功返回null，失败返回锁的剩余毫秒数
+     */
+    private Long acquire(String owner, long lease, boolean watchdog) {
+        Long ttl = client.getStringRedisTemplate().execute(RedisLockClient.LOCK_SCRIPT,
+                Collections.singletonList(key), String.valueOf(lease), owner);
+        if (ttl == null) {
+            leaseMs.set(lease);
+            if (watchdog) {
+                client.scheduleRenewal(key, owner);
+            }
+        }
+        return ttl;
+    }
+
+    @Override
+    public void unlock() {
+        String owner = this.owner.get();
+        Long lease = leaseMs.get();
+        Long result = client.getStringRedisTemplate().execute(RedisLockClient.UNLOCK_SCRIPT,
+                Arrays.asList(key, LOCK_UNLOCK_CHANNEL),
+                String.valueOf(lease != null ? lease : client.getWatchdogTimeoutMs()), owner);
+        if (result == null) {
+            //锁已经过期或者不是当前线程持有的
+            client.cancelRenewal(key, owner);
+            leaseMs.remove();
+            throw new IllegalMonitorStateException("当前线程没有持有锁：" + key);
+        }
+        if (result == 1) {
+            //完全释放
+            client.cancelRenewal(key, owner);
+            leaseMs.remove();
+        }
+    }
+}
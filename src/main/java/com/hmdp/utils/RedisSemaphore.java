@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SEMAPHORE_KEY;
+
+/**
+ * 带租期的分布式信号量，通过RedisLockClient.getSemaphore获取
+ * 每个许可是zset中的一个成员，score是过期时间（redis的TIME），持有者挂掉后许可到期自动回收
+ * 例如限制整个集群同时重建同一类缓存的线程数
+ */
+public class RedisSemaphore {
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        ACQUIRE_SCRIPT = new DefaultRedisScript<>();
+        ACQUIRE_SCRIPT.setLocation(new ClassPathResource("semaphoreAcquire.lua"));
+        ACQUIRE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("semaphoreRelease.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String key;
+    private final int permits;
+    private final RedisLockClient client;
+
+    RedisSemaphore(String name, int permits, RedisLockClient client) {
+        this.key = SEMAPHORE_KEY + name;
+        this.permits = permits;
+        this.client = client;
+    }
+
+    /**
+     * 获取一个许可
+     * @param waitTime 最长等待时间，0表示只尝试一次
+     * @param leaseTime 许可的租期，到期后自动回收
+     * @return 许可id，归还时使用；等待超时返回null
+     */
+    public String tryAcquire(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        String permitId = UUID.randomUUID().toString(true);
+        String lease = String.valueOf(unit.toMillis(leaseTime));
+        boolean acquired = client.await(key, unit.toNanos(waitTime), () ->
+                client.getStringRedisTemplate().execute(ACQUIRE_SCRIPT, Collections.singletonList(key),
+                        String.valueOf(permits), lease, permitId));
+        return acquired ? permitId : null;
+    }
+
+    /**
+     * 归还许可
+     * @return false 表示许可已经过期被回收了
+     */
+    public boolean release(String permitId) {
+        Long result = client.getStringRedisTemplate().execute(RELEASE_SCRIPT,
+                Arrays.asList(key, LOCK_UNLOCK_CHANNEL), permitId);
+        return result != null && result == 1;
+    }
+
+    /**
+     * 当前可用的许可数，不清理过期许可，只用于监控
+     */
+    public int availablePermits() {
+        Long used = client.getStringRedisTemplate().opsForZSet()
+                .count(key, System.currentTimeMillis(), Double.POSITIVE_INFINITY);
+        return permits - (used == null ? 0 : used.intValue());
+    }
+}
@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀预热任务
+ * 定时扫描即将开始（以及正在进行）的秒杀券，每批一个pipeline把库存、时间窗口和已有买家写入redis，
+ * 秒杀开始后请求只走seckill.lua，不再访问MySQL
+ * 库存只在秒杀开始前补写：开始之后MySQL库存比redis少扣了队列中还没落库的订单，按MySQL补回会超卖，
+ * 进行中的秒杀丢了库存key由对账任务（SeckillReconciler）扣掉队列中的订单后补回
+ */
+@Slf4j
+@Component
+public class SeckillPreheater {
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    /**
+     * 预热未来多少分钟内开始的秒杀
+     */
+    @Value("${hmdp.seckill.preheat.ahead-minutes:10}")
+    private long aheadMinutes;
+    /**
+     * 每批预热的秒杀券数量，也是每个pipeline包含的秒杀券数量
+     */
+    @Value("${hmdp.seckill.preheat.batch-size:200}")
+    private int batchSize;
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.preheat.initial-delay-ms:5000}",
+            fixedDelayString = "${hmdp.seckill.preheat.fixed-delay-ms:60000}")
+    public void preheat() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime horizon = now.plusMinutes(aheadMinutes);
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            //1.按voucher_id分页（keyset）查询时间窗口和 [now, now+X] 有交集的秒杀券
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", lastId)
+                    .le("begin_time", horizon)
+                    .ge("end_time", now)
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + batchSize)
+                    .list();
+            if (vouchers.isEmpty()) {
+                break;
+            }
+            //2.一批一个pipeline写入redis
+            preheat(vouchers);
+            total += vouchers.size();
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            if (vouchers.size() < batchSize) {
+                break;
+            }
+        }
+        if (total > 0) {
+            log.info("秒杀预热完成，共{}张秒杀券", total);
+        }
+    }
+
+    /**
+     * 预热一批秒杀券：时间窗口每次都写入；还没开始的秒杀，库存key不存在时写入库存（SETNX），
+     * 确实写入了库存的才从MySQL加载已有买家、清除售罄标记
+     */
+    public void preheat(List<SeckillVoucher> vouchers) {
+        //1.一个pipeline给还没开始的秒杀写入库存，分片模式下每个分片各一条SETNX
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> pending = vouchers.stream()
+                .filter(voucher -> voucher.getBeginTime().isAfter(now))
+                .collect(Collectors.toList());
+        List<Object> results = pending.isEmpty() ? new ArrayList<>() : stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : pending) {
+                stockOf(voucher).forEach(conn::setNX);
+            }
+            return null;
+        });
+        //2.找出这一轮写入了库存的秒杀券
+        Set<Long> written = new HashSet<>();
+        int index = 0;
+        for (SeckillVoucher voucher : pending) {
+            int keys = stockOf(voucher).size();
+            for (int i = 0; i < keys; i++) {
+                if (Boolean.TRUE.equals(results.get(index++))) {
+                    written.add(voucher.getVoucherId());
+                }
+            }
+        }
+        //3.一次sql查出这些秒杀券已有的买家
+        Map<Long, List<String>> buyers = written.isEmpty() ? new HashMap<>() : voucherOrderService.query()
+                .select("voucher_id", "user_id")
+                .in("voucher_id", written)
+                .list()
+                .stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId,
+                        Collectors.mapping(order -> order.getUserId().toString(), Collectors.toList())));
+        //4.一个pipeline写入时间窗口、买家
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                writeVoucher(conn, voucher, buyers.getOrDefault(voucher.getVoucherId(), new ArrayList<>()));
+            }
+            return null;
+        });
+        //5.库存被补回来了，清除售罄标记
+        for (SeckillVoucher voucher : pending) {
+            if (written.contains(voucher.getVoucherId()) && voucher.getStock() > 0) {
+                seckillSoldOutRegistry.clear(voucher.getVoucherId());
+            }
+        }
+    }
+
+    /**
+     * 要写入的库存key和库存，分片模式下平均拆到每个分片上
+     */
+    private Map<String, String> stockOf(SeckillVoucher voucher) {
+        if (seckillStockShards.isEnabled()) {
+            return seckillStockShards.splitStock(voucher.getVoucherId(), voucher.getStock());
+        }
+        return Collections.singletonMap(SECKILL_STOCK_KEY + voucher.getVoucherId(), voucher.getStock().toString());
+    }
+
+    private void writeVoucher(StringRedisConnection conn, SeckillVoucher voucher, List<String> buyers) {
+        Long voucherId = voucher.getVoucherId();
+        //1.时间窗口，秒杀结束一天后过期
+        String windowKey = SECKILL_WINDOW_KEY + voucherId;
+        conn.hMSet(windowKey, window(voucher));
+        conn.expireAt(windowKey, voucher.getEndTime().plusDays(1).atZone(ZoneId.systemDefault()).toEpochSecond());
+        //2.已有买家
+        if (buyers.isEmpty()) {
+            return;
+        }
+        if (seckillStockShards.isEnabled()) {
+            Map<Integer, List<String>> buyersByShard = buyers.stream()
+                    .collect(Collectors.groupingBy(userId -> seckillStockShards.homeShard(Long.valueOf(userId))));
+            buyersByShard.forEach((shard, users) ->
+                    conn.sAdd(seckillStockShards.orderKey(voucherId, shard), users.toArray(new String[0])));
+        } else {
+            conn.sAdd(SECKILL_ORDER_KEY + voucherId, buyers.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * 秒杀时间窗口，存毫秒时间戳，由seckill.lua判断
+     */
+    public static Map<String, String> window(SeckillVoucher voucher) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(voucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        window.put("end", String.valueOf(voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        return window;
+    }
+}
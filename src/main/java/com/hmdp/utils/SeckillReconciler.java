@@ -0,0 +1,317 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * redis和MySQL之间秒杀库存、订单的对账任务
+ * 同一份事实存在三个地方：redis的 seckill:stock:* / seckill:order:*，tb_seckill_voucher.stock，tb_voucher_order
+ * 按voucher_id分页（keyset）逐批对比，sql只做聚合查询不加锁，redis只用pipeline和SCAN，可以在高峰期运行
+ * 库存和订单数在同一条sql里读（同一个一致性读快照，消费者扣库存和插订单在同一个事务里），redis在sql之后读：
+ * 快照之后落库的订单已经在redis的买家集合里，算作队列中的订单；发现差异后重新读一次，数据变了说明有订单正在流转，跳过等下一轮
+ * 对账规则：
+ * 1. redis买家数 < MySQL订单数：redis丢了买家，可以自动补回（SADD幂等）
+ * 2. redis库存key不存在：可以按MySQL库存减去还在队列中的订单数、再减去还在的分片库存补回，每个缺失的key各自SETNX
+ * 3. redis库存+redis买家数 != MySQL库存+MySQL订单数：两边的总量不守恒，只报告，需要人工处理
+ * 4. redis中有库存key但MySQL中没有这张秒杀券：只报告
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    /**
+     * 每页对账的秒杀券数量
+     */
+    @Value("${hmdp.seckill.reconcile.page-size:200}")
+    private int pageSize;
+    /**
+     * 是否自动修复规则1、2的差异
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile.initial-delay-ms:60000}",
+            fixedDelayString = "${hmdp.seckill.reconcile.fixed-delay-ms:600000}")
+    public void reconcileTask() {
+        try {
+            reconcile();
+        } catch (Exception e) {
+            log.error("秒杀对账异常", e);
+        }
+    }
+
+    /**
+     * 执行一轮对账
+     * @return 发现的差异数
+     */
+    public int reconcile() {
+        int diffs = 0;
+        int vouchers = 0;
+        long lastId = 0;
+        while (true) {
+            //1.keyset分页查询秒杀券的库存和订单数
+            List<VoucherState> page = snapshot(new QueryWrapper<SeckillVoucher>()
+                    .gt("voucher_id", lastId)
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + pageSize));
+            if (page.isEmpty()) {
+                break;
+            }
+            diffs += reconcilePage(page);
+            vouchers += page.size();
+            lastId = page.get(page.size() - 1).voucherId;
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        //2.SCAN检查redis中多出来的库存key
+        diffs += scanOrphanStockKeys();
+        log.info("秒杀对账完成，共{}张秒杀券，发现{}处差异", vouchers, diffs);
+        return diffs;
+    }
+
+    /**
+     * 一条sql查出秒杀券的库存和订单数，子查询和外层查询用的是同一个快照
+     */
+    private List<VoucherState> snapshot(QueryWrapper<SeckillVoucher> wrapper) {
+        wrapper.select("voucher_id", "stock",
+                "(SELECT COUNT(*) FROM tb_voucher_order o WHERE o.voucher_id = tb_seckill_voucher.voucher_id) AS orders");
+        return seckillVoucherService.listMaps(wrapper).stream()
+                .map(row -> new VoucherState(((Number) row.get("voucher_id")).longValue(),
+                        ((Number) row.get("stock")).longValue(), ((Number) row.get("orders")).longValue()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 一个pipeline查询每张券的redis库存和买家数，分片模式下每个分片各一条，必须在snapshot之后调用
+     */
+    private void readRedis(List<VoucherState> states) {
+        int shards = seckillStockShards.isEnabled() ? seckillStockShards.getShards() : 1;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherState state : states) {
+                for (int i = 0; i < shards; i++) {
+                    conn.get(stockKey(state.voucherId, i));
+                    conn.sCard(orderKey(state.voucherId, i));
+                }
+            }
+            return null;
+        });
+        int index = 0;
+        for (VoucherState state : states) {
+            for (int i = 0; i < shards; i++) {
+                Object stock = results.get(index++);
+                Object orders = results.get(index++);
+                if (stock == null) {
+                    state.missingShards.add(i);
+                } else {
+                    state.redisStock += Long.parseLong(stock.toString());
+                }
+                state.redisOrders += orders == null ? 0 : ((Number) orders).longValue();
+            }
+        }
+    }
+
+    private int reconcilePage(List<VoucherState> page) {
+        readRedis(page);
+        int diffs = 0;
+        for (VoucherState state : page) {
+            if (!state.hasDiff()) {
+                continue;
+            }
+            //1.复查：重新读一次sql和redis，数据变了说明两次读之间有订单在流转，这一轮不报告也不修复
+            List<VoucherState> fresh = snapshot(new QueryWrapper<SeckillVoucher>().eq("voucher_id", state.voucherId));
+            readRedis(fresh);
+            if (fresh.isEmpty() || !fresh.get(0).sameAs(state)) {
+                log.info("秒杀对账：voucherId={} 复查时数据已经变化，下一轮再对账", state.voucherId);
+                continue;
+            }
+            //2.逐项报告和修复
+            diffs += reconcileVoucher(state);
+        }
+        return diffs;
+    }
+
+    private int reconcileVoucher(VoucherState state) {
+        Long voucherId = state.voucherId;
+        int diffs = 0;
+        if (state.redisOrders < state.orders) {
+            diffs++;
+            log.warn("秒杀对账：voucherId={} redis买家数{}小于MySQL订单数{}", voucherId, state.redisOrders, state.orders);
+            if (repair) {
+                repairBuyers(voucherId);
+            }
+        }
+        if (!state.missingShards.isEmpty()) {
+            diffs++;
+            //还在队列中没有落库的订单已经扣过redis库存，还在的分片上的库存也不能再补一次
+            long inflight = Math.max(state.redisOrders - state.orders, 0);
+            long restore = Math.max(state.stock - inflight - state.redisStock, 0);
+            log.warn("秒杀对账：voucherId={} redis库存key不存在，缺失分片{}，MySQL库存{}，队列中订单{}，现有分片库存{}",
+                    voucherId, state.missingShards, state.stock, inflight, state.redisStock);
+            if (repair) {
+                repairStock(voucherId, state.missingShards, restore);
+            }
+        } else if (state.redisStock + state.redisOrders != state.stock + state.orders) {
+            diffs++;
+            log.warn("秒杀对账：voucherId={} 总量不守恒，redis库存{}+买家{}，MySQL库存{}+订单{}",
+                    voucherId, state.redisStock, state.redisOrders, state.stock, state.orders);
+        }
+        return diffs;
+    }
+
+    /**
+     * 按订单id分页把MySQL中的买家补回redis，SADD是幂等的
+     */
+    private void repairBuyers(Long voucherId) {
+        long lastId = Long.MIN_VALUE;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT 1000")
+                    .list();
+            if (orders.isEmpty()) {
+                return;
+            }
+            Map<Integer, List<String>> buyersByShard = orders.stream().collect(Collectors.groupingBy(
+                    order -> seckillStockShards.isEnabled() ? seckillStockShards.homeShard(order.getUserId()) : 0,
+                    Collectors.mapping(order -> order.getUserId().toString(), Collectors.toList())));
+            buyersByShard.forEach((shard, users) ->
+                    stringRedisTemplate.opsForSet().add(orderKey(voucherId, shard), users.toArray(new String[0])));
+            lastId = orders.get(orders.size() - 1).getId();
+            if (orders.size() < 1000) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把要补回的库存平均分到缺失的分片上（余数分给前面的分片），每个key单独SETNX，
+     * 对账期间被其他地方写回的分片不会被覆盖；确实写入了库存才清除售罄标记
+     */
+    private void repairStock(Long voucherId, List<Integer> missingShards, long stock) {
+        boolean restored = false;
+        int count = missingShards.size();
+        for (int i = 0; i < count; i++) {
+            long shardStock = stock / count + (i < stock % count ? 1 : 0);
+            Boolean written = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(stockKey(voucherId, missingShards.get(i)), String.valueOf(shardStock));
+            if (Boolean.TRUE.equals(written) && shardStock > 0) {
+                restored = true;
+            }
+        }
+        if (restored) {
+            seckillSoldOutRegistry.clear(voucherId);
+        }
+    }
+
+    /**
+     * SCAN遍历 seckill:stock:*，找出MySQL中已经不存在的秒杀券
+     */
+    private int scanOrphanStockKeys() {
+        Set<Long> voucherIds = new HashSet<>();
+        ScanOptions options = ScanOptions.scanOptions().match(SECKILL_STOCK_KEY + "*").count(1000).build();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    //seckill:stock:{voucherId} 或 seckill:stock:{voucherId}:{shard}
+                    String[] parts = key.substring(SECKILL_STOCK_KEY.length()).split(":");
+                    try {
+                        voucherIds.add(Long.valueOf(parts[0]));
+                    } catch (NumberFormatException e) {
+                        log.warn("秒杀对账：无法识别的库存key {}", key);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("秒杀对账：SCAN库存key失败", e);
+            }
+            return null;
+        });
+        int diffs = 0;
+        for (List<Long> ids : CollUtil.split(voucherIds, pageSize)) {
+            Set<Long> exists = seckillVoucherService.query()
+                    .select("voucher_id")
+                    .in("voucher_id", ids)
+                    .list()
+                    .stream()
+                    .map(SeckillVoucher::getVoucherId)
+                    .collect(Collectors.toSet());
+            for (Long id : ids) {
+                if (!exists.contains(id)) {
+                    diffs++;
+                    log.warn("秒杀对账：redis中存在库存key，但MySQL中没有秒杀券 voucherId={}", id);
+                }
+            }
+        }
+        return diffs;
+    }
+
+    private String stockKey(Long voucherId, int shard) {
+        return seckillStockShards.isEnabled() ? seckillStockShards.stockKey(voucherId, shard) : SECKILL_STOCK_KEY + voucherId;
+    }
+
+    private String orderKey(Long voucherId, int shard) {
+        return seckillStockShards.isEnabled() ? seckillStockShards.orderKey(voucherId, shard) : SECKILL_ORDER_KEY + voucherId;
+    }
+
+    /**
+     * 一张秒杀券在MySQL快照和redis中的状态
+     */
+    private static class VoucherState {
+        private final Long voucherId;
+        private final long stock;
+        private final long orders;
+        private final List<Integer> missingShards = new ArrayList<>();
+        private long redisStock;
+        private long redisOrders;
+
+        private VoucherState(Long voucherId, long stock, long orders) {
+            this.voucherId = voucherId;
+            this.stock = stock;
+            this.orders = orders;
+        }
+
+        private boolean hasDiff() {
+            return redisOrders < orders || !missingShards.isEmpty() || redisStock + redisOrders != stock + orders;
+        }
+
+        private boolean sameAs(VoucherState other) {
+            return stock == other.stock && orders == other.orders && redisStock == other.redisStock
+                    && redisOrders == other.redisOrders && missingShards.equals(other.missingShards);
+        }
+    }
+}
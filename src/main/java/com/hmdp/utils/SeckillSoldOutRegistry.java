@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 节点本地的秒杀券售罄标记
+ * 某个节点执行seckill.lua发现库存不足后标记售罄，并通过redis发布订阅通知所有节点，
+ * 之后该优惠券的秒杀请求在本地直接返回，不再访问redis
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+    private static final String SOLD_OUT = "SOLD_OUT:";
+    private static final String CLEAR = "CLEAR:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    /**
+     * 售罄标记的本地有效期，过期后重新走一次lua脚本确认，防止漏收清除消息导致一直售罄
+     */
+    @Value("${hmdp.seckill.sold-out-ttl-ms:30000}")
+    private long soldOutTtlMs;
+
+    /**
+     * voucherId -> 标记过期的时间戳
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 本地判断是否已经售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并广播给所有节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            //本节点已经标记过，说明广播也已经发过了
+            return;
+        }
+        soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMs);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+    }
+
+    /**
+     * 重新写入库存后清除售罄标记，并广播给所有节点
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                Long voucherId = Long.valueOf(body.substring(SOLD_OUT.length()));
+                soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMs);
+            } else if (body.startsWith(CLEAR)) {
+                soldOut.remove(Long.valueOf(body.substring(CLEAR.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无法解析的售罄消息：{}", body);
+        }
+    }
+}
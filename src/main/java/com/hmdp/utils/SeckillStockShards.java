@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 热点秒杀券的分片库存
+ * 库存拆到 seckill:stock:{voucherId}:0 ~ K-1 这K个key上，用户按id固定落在一个分片上扣库存，
+ * 自己的分片扣完了再依次探测其他分片；一人一单的集合也按用户分片，同一个用户永远只查自己分片的集合，所以去重是精确的
+ * 注意：分片数K在秒杀进行中不能修改
+ */
+@Component
+public class SeckillStockShards {
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckillShard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 库存分片数，1表示不分片，使用单个 seckill:stock:{voucherId}
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int shards;
+
+    public boolean isEnabled() {
+        return shards > 1;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * 把库存平均拆到K个分片上，余数分给前面的分片
+     */
+    public void setStock(Long voucherId, int stock) {
+        stringRedisTemplate.opsForValue().multiSet(splitStock(voucherId, stock));
+    }
+
+    /**
+     * 分片模式下的秒杀
+     * @return 0 下单成功；1 库存不足；2 重复下单；4 秒杀尚未开始；5 秒杀已经结束
+     */
+    public int seckill(Long voucherId, Long userId, Long orderId, String streamKey) {
+        int homeShard = homeShard(userId);
+        String now = String.valueOf(System.currentTimeMillis());
+        for (int i = 0; i < shards; i++) {
+            //1.从用户所属分片开始依次探测
+            int shard = (homeShard + i) % shards;
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SHARD_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), orderId.toString(), streamKey,
+                    String.valueOf(shard), String.valueOf(homeShard), now, SECKILL_ORDER_STATUS_TTL.toString()
+            );
+            int r = result.intValue();
+            if (r != 3) {
+                return r;
+            }
+        }
+        //2.所有分片都没有库存，归还占住的一人一单名额
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, homeShard), userId.toString());
+        return 1;
+    }
+
+    /**
+     * 每个分片的库存，写入预热pipeline中的命令
+     */
+    public Map<String, String> splitStock(Long voucherId, int stock) {
+        Map<String, String> stocks = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stocks.put(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        return stocks;
+    }
+
+    public int homeShard(Long userId) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    public String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + voucherId + ":" + shard;
+    }
+
+    public String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + voucherId + ":" + shard;
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.springframework.stereotype.Component;
+
+/**
+ * 商铺的二进制编解码器
+ * schema版本1：变长整数的字段位图，后面按字段顺序依次写出非空字段，没有字段名，也不做反射
+ * 新增字段只能追加在末尾并升级版本号，decode里要保留旧版本的读法
+ */
+@Component
+public class ShopCacheCodec implements CacheCodec {
+    public static final byte ID = 1;
+    private static final int VERSION = 1;
+
+    private static final int ID_BIT = 1;
+    private static final int NAME_BIT = 1 << 1;
+    private static final int TYPE_ID_BIT = 1 << 2;
+    private static final int IMAGES_BIT = 1 << 3;
+    private static final int AREA_BIT = 1 << 4;
+    private static final int ADDRESS_BIT = 1 << 5;
+    private static final int X_BIT = 1 << 6;
+    private static final int Y_BIT = 1 << 7;
+    private static final int AVG_PRICE_BIT = 1 << 8;
+    private static final int SOLD_BIT = 1 << 9;
+    private static final int COMMENTS_BIT = 1 << 10;
+    private static final int SCORE_BIT = 1 << 11;
+    private static final int OPEN_HOURS_BIT = 1 << 12;
+    private static final int CREATE_TIME_BIT = 1 << 13;
+    private static final int UPDATE_TIME_BIT = 1 << 14;
+    private static final int DISTANCE_BIT = 1 << 15;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public int version() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return type == Shop.class;
+    }
+
+    @Override
+    public void encode(Object value, CacheBuffer buffer) {
+        Shop shop = (Shop) value;
+        //1.字段位图
+        int mask = 0;
+        mask |= shop.getId() != null ? ID_BIT : 0;
+        mask |= shop.getName() != null ? NAME_BIT : 0;
+        mask |= shop.getTypeId() != null ? TYPE_ID_BIT : 0;
+        mask |= shop.getImages() != null ? IMAGES_BIT : 0;
+        mask |= shop.getArea() != null ? AREA_BIT : 0;
+        mask |= shop.getAddress() != null ? ADDRESS_BIT : 0;
+        mask |= shop.getX() != null ? X_BIT : 0;
+        mask |= shop.getY() != null ? Y_BIT : 0;
+        mask |= shop.getAvgPrice() != null ? AVG_PRICE_BIT : 0;
+        mask |= shop.getSold() != null ? SOLD_BIT : 0;
+        mask |= shop.getComments() != null ? COMMENTS_BIT : 0;
+        mask |= shop.getScore() != null ? SCORE_BIT : 0;
+        mask |= shop.getOpenHours() != null ? OPEN_HOURS_BIT : 0;
+        mask |= shop.getCreateTime() != null ? CREATE_TIME_BIT : 0;
+        mask |= shop.getUpdateTime() != null ? UPDATE_TIME_BIT : 0;
+        mask |= shop.getDistance() != null ? DISTANCE_BIT : 0;
+        buffer.writeVarLong(mask);
+        //2.按顺序写非空字段
+        if ((mask & ID_BIT) != 0) buffer.writeVarLong(shop.getId());
+        if ((mask & NAME_BIT) != 0) buffer.writeString(shop.getName());
+        if ((mask & TYPE_ID_BIT) != 0) buffer.writeVarLong(shop.getTypeId());
+        if ((mask & IMAGES_BIT) != 0) buffer.writeString(shop.getImages());
+        if ((mask & AREA_BIT) != 0) buffer.writeString(shop.getArea());
+        if ((mask & ADDRESS_BIT) != 0) buffer.writeString(shop.getAddress());
+        if ((mask & X_BIT) != 0) buffer.writeDouble(shop.getX());
+        if ((mask & Y_BIT) != 0) buffer.writeDouble(shop.getY());
+        if ((mask & AVG_PRICE_BIT) != 0) buffer.writeSignedVarLong(shop.getAvgPrice());
+        if ((mask & SOLD_BIT) != 0) buffer.writeSignedVarLong(shop.getSold());
+        if ((mask & COMMENTS_BIT) != 0) buffer.writeSignedVarLong(shop.getComments());
+        if ((mask & SCORE_BIT) != 0) buffer.writeSignedVarLong(shop.getScore());
+        if ((mask & OPEN_HOURS_BIT) != 0) buffer.writeString(shop.getOpenHours());
+        if ((mask & CREATE_TIME_BIT) != 0) buffer.writeDateTime(shop.getCreateTime());
+        if ((mask & UPDATE_TIME_BIT) != 0) buffer.writeDateTime(shop.getUpdateTime());
+        if ((mask & DISTANCE_BIT) != 0) buffer.writeDouble(shop.getDistance());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> R decode(CacheBuffer buffer, Class<R> type, int version) {
+        if (version != VERSION) {
+            throw new IllegalStateException("不支持的商铺缓存版本：" + version);
+        }
+        int mask = (int) buffer.readVarLong();
+        Shop shop = new Shop();
+        if ((mask & ID_BIT) != 0) shop.setId(buffer.readVarLong());
+        if ((mask & NAME_BIT) != 0) shop.setName(buffer.readString());
+        if ((mask & TYPE_ID_BIT) != 0) shop.setTypeId(buffer.readVarLong());
+        if ((mask & IMAGES_BIT) != 0) shop.setImages(buffer.readString());
+        if ((mask & AREA_BIT) != 0) shop.setArea(buffer.readString());
+        if ((mask & ADDRESS_BIT) != 0) shop.setAddress(buffer.readString());
+        if ((mask & X_BIT) != 0) shop.setX(buffer.readDouble());
+        if ((mask & Y_BIT) != 0) shop.setY(buffer.readDouble());
+        if ((mask & AVG_PRICE_BIT) != 0) shop.setAvgPrice(buffer.readSignedVarLong());
+        if ((mask & SOLD_BIT) != 0) shop.setSold((int) buffer.readSignedVarLong());
+        if ((mask & COMMENTS_BIT) != 0) shop.setComments((int) buffer.readSignedVarLong());
+        if ((mask & SCORE_BIT) != 0) shop.setScore((int) buffer.readSignedVarLong());
+        if ((mask & OPEN_HOURS_BIT) != 0) shop.setOpenHours(buffer.readString());
+        if ((mask & CREATE_TIME_BIT) != 0) shop.setCreateTime(buffer.readDateTime());
+        if ((mask & UPDATE_TIME_BIT) != 0) shop.setUpdateTime(buffer.readDateTime());
+        if ((mask & DISTANCE_BIT) != 0) shop.setDistance(buffer.readDouble());
+        return (R) shop;
+    }
+}
@@ -0,0 +1,225 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时批量预热店铺缓存
+ * 1.热点店铺（销量最高的前N家）在ApplicationRunner里同步写入，Spring Boot在所有runner执行完之后才把readiness置为ACCEPTING_TRAFFIC，
+ *   所以热点集合写完之前实例不会接流量；健康检查里的shopCacheWarmer在这之前是OUT_OF_SERVICE
+ * 2.其余店铺在后台线程里用MyBatis游标按id顺序流式读取，每批并行编码、一个pipeline写入，失败后从上次写到的id继续
+ * 写入格式和queryWithSoftExpire相同，hash缓存模式下按字段写入hash，预热的key同样带TTL抖动，不会同时过期
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner, HealthIndicator {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private ShopHashCache shopHashCache;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private MeterRegistry meterRegistry;
+    /**
+     * 预热总开关
+     */
+    @Value("${hmdp.cache.warmup.enabled:true}")
+    private boolean enabled;
+    /**
+     * 同步预热的热点店铺数量，按销量排序
+     */
+    @Value("${hmdp.cache.warmup.hot-size:1000}")
+    private int hotSize;
+    /**
+     * 每个pipeline写入的店铺数量
+     */
+    @Value("${hmdp.cache.warmup.batch-size:500}")
+    private int batchSize;
+    /**
+     * 是否在后台预热全部店铺
+     */
+    @Value("${hmdp.cache.warmup.full:true}")
+    private boolean full;
+    /**
+     * 后台预热失败后的最大重试次数，每次从上次写到的id继续
+     */
+    @Value("${hmdp.cache.warmup.max-retries:3}")
+    private int maxRetries;
+
+    private final AtomicLong warmed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile String phase = "pending";
+    private volatile long lastId;
+    private volatile Thread fullThread;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            phase = "disabled";
+            return;
+        }
+        FunctionCounter.builder("cache.warmup.entries", warmed, AtomicLong::get)
+                .tag("prefix", CACHE_SHOP_KEY).register(meterRegistry);
+        //1.同步预热热点店铺，写完之前readiness不会变成可用；redis或数据库不可用时不阻止启动，缓存会在访问时回源
+        phase = "hot";
+        long start = System.currentTimeMillis();
+        Set<Long> hotIds = new HashSet<>();
+        try {
+            List<Shop> hotShops = shopService.query()
+                    .orderByDesc("sold")
+                    .last("LIMIT " + hotSize)
+                    .list();
+            for (int i = 0; i < hotShops.size(); i += batchSize) {
+                write(hotShops.subList(i, Math.min(i + batchSize, hotShops.size())));
+            }
+            hotShops.forEach(shop -> hotIds.add(shop.getId()));
+            log.info("热点店铺缓存预热完成，共{}家，耗时{}ms", hotIds.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("热点店铺缓存预热失败", e);
+        }
+        phase = "full";
+        if (!full) {
+            phase = "done";
+            return;
+        }
+        //2.后台预热其余店铺
+        fullThread = new Thread(() -> warmAll(hotIds), "shop-cache-warmup");
+        fullThread.setDaemon(true);
+        fullThread.start();
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder builder = "hot".equals(phase) || "pending".equals(phase) ? Health.outOfService() : Health.up();
+        return builder.withDetail("phase", phase)
+                .withDetail("warmed", warmed.get())
+                .withDetail("lastId", lastId)
+                .build();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        Thread thread = fullThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void warmAll(Set<Long> hotIds) {
+        long start = System.currentTimeMillis();
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            try {
+                scan(hotIds);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                phase = "done";
+                log.info("店铺缓存预热完成，共{}家，耗时{}ms", warmed.get(), System.currentTimeMillis() - start);
+                return;
+            } catch (Exception e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                log.warn("店铺缓存预热中断，lastId：{}，第{}次重试", lastId, attempt + 1, e);
+            }
+        }
+        phase = "failed";
+        log.error("店铺缓存预热失败，已预热{}家，lastId：{}", warmed.get(), lastId);
+    }
+
+    /**
+     * 从lastId开始游标遍历tb_shop，游标要在事务里读完，事务结束连接就归还了
+     */
+    private void scan(Set<Long> hotIds) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.executeWithoutResult(status -> {
+            try (Cursor<Shop> cursor = shopMapper.scanAfter(lastId)) {
+                List<Shop> batch = new ArrayList<>(batchSize);
+                for (Shop shop : cursor) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    if (!hotIds.contains(shop.getId())) {
+                        batch.add(shop);
+                    }
+                    if (batch.size() >= batchSize) {
+                        write(batch);
+                        lastId = batch.get(batch.size() - 1).getId();
+                        batch.clear();
+                    }
+                }
+                write(batch);
+                if (!batch.isEmpty()) {
+                    lastId = batch.get(batch.size() - 1).getId();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * 写入一批店铺并记录进度
+     */
+    private void write(List<Shop> shops) {
+        if (shops.isEmpty()) {
+            return;
+        }
+        if (shopHashCache.isEnabled()) {
+            shopHashCache.put(shops);
+        } else {
+            writeSoftExpire(shops);
+        }
+        long total = warmed.addAndGet(shops.size());
+        //每20批打一次进度
+        if (batches.incrementAndGet() % 20 == 0) {
+            log.info("店铺缓存预热进度：{}家，阶段：{}", total, phase);
+        } else {
+            log.debug("店铺缓存预热进度：{}家，阶段：{}", total, phase);
+        }
+    }
+
+    /**
+     * 一批店铺并行编码、一个pipeline写入
+     */
+    private void writeSoftExpire(List<Shop> shops) {
+        Map<String, Shop> entries = new LinkedHashMap<>(shops.size() * 2);
+        for (Shop shop : shops) {
+            entries.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        cacheClient.setMultiWithSoftExpire(entries, CACHE_SHOP_TTL, CACHE_SHOP_HARD_TTL, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,315 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 按字段存储的店铺缓存：每个店铺一个hash，key为cache:shopHash:{id}，每个字段一个field
+ * 读的时候HMGET只取调用方需要的字段，不再传输和解析整个对象；sold、comments、score这类计数用HINCRBY原地修改，不用重写整个值
+ * 空值缓存成只有一个空id字段的hash；hash中没有的字段就是null
+ * 开启方式：hmdp.cache.shop.storage=hash，默认仍然是CacheClient中按整个对象编码的字符串缓存
+ */
+@Component
+public class ShopHashCache {
+    /**
+     * 店铺详情需要的字段
+     */
+    public static final String[] ALL_FIELDS = {"id", "name", "typeId", "images", "area", "address", "x", "y",
+            "avgPrice", "sold", "comments", "score", "openHours", "createTime", "updateTime"};
+    /**
+     * 店铺列表需要的字段，不包括营业时间和创建、更新时间
+     */
+    public static final String[] LIST_FIELDS = {"id", "name", "typeId", "images", "area", "address", "x", "y",
+            "avgPrice", "sold", "comments", "score"};
+    /**
+     * 可以用HINCRBY原地修改的计数字段
+     */
+    public static final List<String> COUNTER_FIELDS = Arrays.asList("sold", "comments", "score");
+
+    private static final Map<String, Function<Shop, Object>> GETTERS = new LinkedHashMap<>();
+    private static final Map<String, BiConsumer<Shop, String>> SETTERS = new HashMap<>();
+    static {
+        field("id", Shop::getId, (shop, v) -> shop.setId(Long.valueOf(v)));
+        field("name", Shop::getName, Shop::setName);
+        field("typeId", Shop::getTypeId, (shop, v) -> shop.setTypeId(Long.valueOf(v)));
+        field("images", Shop::getImages, Shop::setImages);
+        field("area", Shop::getArea, Shop::setArea);
+        field("address", Shop::getAddress, Shop::setAddress);
+        field("x", Shop::getX, (shop, v) -> shop.setX(Double.valueOf(v)));
+        field("y", Shop::getY, (shop, v) -> shop.setY(Double.valueOf(v)));
+        field("avgPrice", Shop::getAvgPrice, (shop, v) -> shop.setAvgPrice(Long.valueOf(v)));
+        field("sold", Shop::getSold, (shop, v) -> shop.setSold(Integer.valueOf(v)));
+        field("comments", Shop::getComments, (shop, v) -> shop.setComments(Integer.valueOf(v)));
+        field("score", Shop::getScore, (shop, v) -> shop.setScore(Integer.valueOf(v)));
+        field("openHours", Shop::getOpenHours, Shop::setOpenHours);
+        //时间存毫秒时间戳
+        field("createTime", shop -> toMillis(shop.getCreateTime()), (shop, v) -> shop.setCreateTime(fromMillis(v)));
+        field("updateTime", shop -> toMillis(shop.getUpdateTime()), (shop, v) -> shop.setUpdateTime(fromMillis(v)));
+    }
+
+    private static final DefaultRedisScript<Long> INCREMENT_SCRIPT;
+    static{
+        INCREMENT_SCRIPT=new DefaultRedisScript<Long>();
+        INCREMENT_SCRIPT.setLocation(new ClassPathResource("hashIncrement.lua"));
+        INCREMENT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheBloomFilters cacheBloomFilters;
+    /**
+     * 店铺缓存的存储方式：string（CacheClient按整个对象编码）或 hash（按字段存储）
+     */
+    @Value("${hmdp.cache.shop.storage:string}")
+    private String storage;
+    /**
+     * TTL的随机抖动比例，和CacheClient共用配置
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    public ShopHashCache(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean isEnabled() {
+        return "hash".equals(storage);
+    }
+
+    /**
+     * 查询一个店铺的部分字段，未命中时回源并写入全部字段
+     * @param fields 需要的字段，为空时查询全部字段
+     * @return 只填充了需要的字段的店铺，不存在时返回null
+     */
+    public Shop query(Long id, Function<Long, Shop> dbFallback, String... fields) {
+        if (cacheBloomFilters != null && !cacheBloomFilters.mightContain(CACHE_SHOP_KEY, id)) {
+            return null;
+        }
+        List<String> projection = projection(fields);
+        String key = CACHE_SHOP_HASH_KEY + id;
+        //1.HMGET只取需要的字段，第一个字段总是id，用来区分未命中和空值
+        List<String> values = stringRedisTemplate.<String, String>opsForHash().multiGet(key, projection);
+        if (values.get(0) != null) {
+            return values.get(0).isEmpty() ? null : fromHash(projection, values);
+        }
+        //2.未命中，本节点对同一个店铺的并发回源合并成一次
+        Shop shop = singleFlight.execute(key, () -> {
+            Shop loaded = dbFallback.apply(id);
+            if (loaded == null) {
+                putNull(Collections.singletonList(id));
+            } else {
+                put(Collections.singletonList(loaded));
+            }
+            return loaded;
+        });
+        return shop == null ? null : project(shop, projection);
+    }
+
+    /**
+     * 批量查询店铺的部分字段：一个pipeline发出所有HMGET，未命中的id一次回源，再用一个pipeline写回
+     * @return 和ids顺序一致，不存在的店铺为null
+     */
+    public List<Shop> queryMulti(List<Long> ids, Function<Collection<Long>, Map<Long, Shop>> batchLoader, String... fields) {
+        List<String> projection = projection(fields);
+        String[] hashFields = projection.toArray(new String[0]);
+        //1.一个pipeline查询所有店铺
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long id : ids) {
+                conn.hMGet(CACHE_SHOP_HASH_KEY + id, hashFields);
+            }
+            return null;
+        });
+        Map<Long, Shop> found = new HashMap<>(ids.size() * 2);
+        LinkedHashSet<Long> missIds = new LinkedHashSet<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Long id = ids.get(i);
+            @SuppressWarnings("unchecked")
+            List<String> values = (List<String>) results.get(i);
+            if (values.get(0) != null) {
+                if (!values.get(0).isEmpty()) {
+                    found.put(id, fromHash(projection, values));
+                }
+            } else if (cacheBloomFilters == null || cacheBloomFilters.mightContain(CACHE_SHOP_KEY, id)) {
+                missIds.add(id);
+            }
+        }
+        //2.未命中的id一次查数据库，查到的和空值一起写回
+        if (!missIds.isEmpty()) {
+            Map<Long, Shop> loaded = batchLoader.apply(missIds);
+            put(loaded.values());
+            List<Long> nullIds = new ArrayList<>();
+            for (Long id : missIds) {
+                Shop shop = loaded.get(id);
+                if (shop == null) {
+                    nullIds.add(id);
+                } else {
+                    found.put(id, project(shop, projection));
+                }
+            }
+            putNull(nullIds);
+        }
+        //3.按传入的顺序返回
+        List<Shop> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * 一个pipeline写入一批店铺的全部字段，TTL加上随机抖动；先删除旧的hash，不留下已经变成null的字段
+     */
+    public void put(Collection<Shop> shops) {
+        if (shops.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Shop shop : shops) {
+                String key = CACHE_SHOP_HASH_KEY + shop.getId();
+                conn.del(key);
+                conn.hMSet(key, toHash(shop));
+                conn.pExpire(key, jitter(TimeUnit.MINUTES.toMillis(CACHE_SHOP_TTL)));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 计数字段原地自增，数据库更新之后调用；缓存不存在时什么也不做，下次读取时回源
+     * @return 自增后的值，缓存不存在时返回null
+     */
+    public Long increment(Long id, String field, long delta) {
+        if (!COUNTER_FIELDS.contains(field)) {
+            throw new IllegalArgumentException("不是计数字段：" + field);
+        }
+        return stringRedisTemplate.execute(INCREMENT_SCRIPT, Collections.singletonList(CACHE_SHOP_HASH_KEY + id),
+                field, String.valueOf(delta));
+    }
+
+    /**
+     * 删除店铺缓存，更新数据库之后调用
+     */
+    public void delete(Long id) {
+        stringRedisTemplate.delete(CACHE_SHOP_HASH_KEY + id);
+    }
+
+    private void putNull(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long id : ids) {
+                String key = CACHE_SHOP_HASH_KEY + id;
+                conn.del(key);
+                conn.hSet(key, "id", "");
+                conn.pExpire(key, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+            }
+            return null;
+        });
+    }
+
+    private long jitter(long millis) {
+        if (ttlJitter <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ttlJitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+    }
+
+    /**
+     * 需要查询的字段，id总是放在第一个
+     */
+    private static List<String> projection(String[] fields) {
+        if (fields == null || fields.length == 0) {
+            return Arrays.asList(ALL_FIELDS);
+        }
+        List<String> projection = new ArrayList<>(fields.length + 1);
+        projection.add("id");
+        for (String field : fields) {
+            if (!GETTERS.containsKey(field)) {
+                throw new IllegalArgumentException("店铺没有这个字段：" + field);
+            }
+            if (!"id".equals(field)) {
+                projection.add(field);
+            }
+        }
+        return projection;
+    }
+
+    public static Map<String, String> toHash(Shop shop) {
+        Map<String, String> hash = new HashMap<>(GETTERS.size() * 2);
+        GETTERS.forEach((field, getter) -> {
+            Object value = getter.apply(shop);
+            if (value != null) {
+                hash.put(field, value.toString());
+            }
+        });
+        return hash;
+    }
+
+    public static Shop fromHash(List<String> fields, List<String> values) {
+        Shop shop = new Shop();
+        for (int i = 0; i < fields.size(); i++) {
+            String value = values.get(i);
+            if (StrUtil.isNotEmpty(value)) {
+                SETTERS.get(fields.get(i)).accept(shop, value);
+            }
+        }
+        return shop;
+    }
+
+    /**
+     * 从回源得到的完整店铺中取出需要的字段，和命中缓存时返回的结果一致
+     */
+    private static Shop project(Shop shop, List<String> projection) {
+        Map<String, String> hash = toHash(shop);
+        List<String> values = new ArrayList<>(projection.size());
+        for (String field : projection) {
+            values.add(hash.get(field));
+        }
+        return fromHash(projection, values);
+    }
+
+    private static void field(String name, Function<Shop, Object> getter, BiConsumer<Shop, String> setter) {
+        GETTERS.put(name, getter);
+        SETTERS.put(name, setter);
+    }
+
+    private static Long toMillis(LocalDateTime time) {
+        return time == null ? null : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(String millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(millis)), ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的请求合并：同一个key同时只有一个线程执行loader，其他线程等待同一个CompletableFuture，拿到同一个结果或异常
+ * loader执行完就移除，之后的调用会重新执行，不缓存结果
+ * 只合并本节点的并发请求，节点之间仍然要靠redis锁协调
+ */
+public class SingleFlight {
+    /**
+     * key -> 正在执行的loader的结果
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = calls.putIfAbsent(key, future);
+        if (inFlight != null) {
+            //1.已经有线程在执行，等它的结果
+            shared.increment();
+            return (T) join(inFlight);
+        }
+        //2.自己执行，结果交给等待的线程
+        executed.increment();
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, future);
+        }
+    }
+
+    /**
+     * 真正执行loader的次数
+     */
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    /**
+     * 直接拿别人结果的次数
+     */
+    public long getShared() {
+        return shared.sum();
+    }
+
+    private static Object join(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            //把loader抛出的异常原样抛给等待的线程
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LEASE_KEY;
+
+/**
+ * 不依赖redis发号的雪花算法id生成器
+ * 高32位沿用RedisIdWorker的秒级时间戳（RedisIdWorker.timestamp），低32位 = 10位毫秒 + 10位workerId + 12位序列号
+ * workerId启动时从redis租用，后台定时续约，租约丢失后停止发号
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.worker", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IIdWorker {
+    private static final int COUNT_BITS = 32;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("partitionLease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unLock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String owner = UUID.randomUUID().toString(true);
+    private final ScheduledExecutorService renewExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "id-worker-lease");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * workerId租约时长，毫秒
+     */
+    @Value("${hmdp.id.worker-lease-ms:30000}")
+    private long leaseMs;
+    /**
+     * 时钟回拨不超过该值时等待时钟追上，超过时继续借用上一毫秒的序列号
+     */
+    @Value("${hmdp.id.max-backward-ms:10}")
+    private long maxBackwardMs;
+
+    private volatile int workerId = -1;
+    /**
+     * 租约有效期截止时间，超过这个时间还没有续约成功就不能再发号
+     */
+    private volatile long leaseExpireAt;
+    private long lastMillis = -1L;
+    private long sequence;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    public void init() {
+        //1.从随机位置开始找一个空闲的workerId
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int candidate = (start + i) % MAX_WORKERS;
+            long begin = System.currentTimeMillis();
+            if (lease(candidate)) {
+                workerId = candidate;
+                leaseExpireAt = begin + leaseMs;
+                break;
+            }
+        }
+        if (workerId < 0) {
+            throw new IllegalStateException("没有空闲的workerId可以租用");
+        }
+        log.info("雪花算法租用workerId：{}", workerId);
+        //2.每1/3个租约时长续约一次
+        renewExecutor.scheduleWithFixedDelay(this::renew, leaseMs / 3, leaseMs / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        renewExecutor.shutdownNow();
+        if (workerId >= 0) {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                    Collections.singletonList(ID_WORKER_LEASE_KEY + workerId), owner);
+        }
+    }
+
+    private boolean lease(int candidate) {
+        Long leased = stringRedisTemplate.execute(LEASE_SCRIPT,
+                Collections.singletonList(ID_WORKER_LEASE_KEY + candidate), owner, String.valueOf(leaseMs));
+        return leased != null && leased == 1;
+    }
+
+    private void renew() {
+        long begin = System.currentTimeMillis();
+        try {
+            if (lease(workerId)) {
+                leaseExpireAt = begin + leaseMs;
+            } else {
+                //workerId已经被其他节点占用，永久停止发号
+                leaseExpireAt = 0;
+                log.error("workerId：{}的租约已经被其他节点占用，停止发号", workerId);
+                renewExecutor.shutdown();
+            }
+        } catch (Exception e) {
+            log.warn("workerId：{}续约失败", workerId, e);
+        }
+    }
+
+    @Override
+    public synchronized Long nextId(String keyPrefix) {
+        long now = System.currentTimeMillis();
+        if (now >= leaseExpireAt) {
+            throw new IllegalStateException("workerId租约已失效，停止发号");
+        }
+        if (now < lastMillis) {
+            //1.时钟回拨，回拨较小时等时钟追上来
+            long offset = lastMillis - now;
+            log.warn("时钟回拨{}ms", offset);
+            if (offset <= maxBackwardMs) {
+                try {
+                    Thread.sleep(offset);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("等待时钟回拨被中断", e);
+                }
+                now = System.currentTimeMillis();
+            }
+        }
+        if (now <= lastMillis) {
+            //2.同一毫秒内或者时钟仍然落后：在上一毫秒上继续借用序列号，用完了再借用下一毫秒
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                lastMillis++;
+            }
+        } else {
+            sequence = 0;
+            lastMillis = now;
+        }
+        long time = RedisIdWorker.timestamp(lastMillis);
+        long millis = lastMillis % 1000;
+        return time << COUNT_BITS
+                | millis << (WORKER_BITS + SEQUENCE_BITS)
+                | (long) workerId << SEQUENCE_BITS
+                | sequence;
+    }
+}
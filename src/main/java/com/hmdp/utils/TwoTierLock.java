@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两级锁，通过TwoTierLockClient.getLock获取
+ * 先抢本地的ReentrantLock，再抢redis锁；同一线程重入、或者redis锁已经交接到本节点时，不访问redis
+ */
+public class TwoTierLock implements ILock {
+    private final String name;
+    private final TwoTierLockClient client;
+
+    TwoTierLock(String name, TwoTierLockClient client) {
+        this.name = name;
+        this.client = client;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        try {
+            return tryLock(0, timeoutSec, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        TwoTierLockClient.Entry entry = client.retain(name);
+        boolean locked = false;
+        try {
+            //1.本地锁，同节点的线程在这里排队
+            if (!entry.local.tryLock(Math.max(0, unit.toNanos(waitTime)), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            try {
+                //2.重入，或者上一个本地持有者把redis锁交接过来了
+                if (entry.local.getHoldCount() > 1 || entry.redisHeld) {
+                    locked = true;
+                    return true;
+                }
+                //3.本节点第一个持有者，去抢redis锁，只和其他节点竞争
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                long lease = leaseTime > 0 ? unit.toNanos(leaseTime) : -1;
+                if (entry.redisLock.tryLock(remaining, lease, TimeUnit.NANOSECONDS)) {
+                    entry.redisHeld = true;
+                    entry.watchdog = leaseTime <= 0;
+                    entry.handoffs = 0;
+                    locked = true;
+                    return true;
+                }
+                return false;
+            } finally {
+                if (!locked) {
+                    entry.local.unlock();
+                }
+            }
+        } finally {
+            if (!locked) {
+                client.release(entry);
+            }
+        }
+    }
+
+    @Override
+    public void unlock() {
+        TwoTierLockClient.Entry entry = client.get(name);
+        if (entry == null || !entry.local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("当前线程没有持有锁：" + name);
+        }
+        try {
+            if (entry.local.getHoldCount() == 1) {
+                //最外层释放：本节点还有线程在排队就交接redis锁，否则释放
+                if (entry.watchdog && entry.local.hasQueuedThreads() && entry.handoffs < client.getMaxHandoffs()) {
+                    entry.handoffs++;
+                } else {
+                    entry.redisHeld = false;
+                    entry.handoffs = 0;
+                    entry.redisLock.unlock();
+                }
+            }
+        } finally {
+            entry.local.unlock();
+            client.release(entry);
+        }
+    }
+}
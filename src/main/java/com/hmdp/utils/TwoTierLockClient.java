@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 两级锁的入口：节点内先抢本地锁，只有本地锁的持有者才去抢redis锁
+ * 1.同一个节点内的竞争在本地排队，不会打到redis
+ * 2.本地锁释放时如果还有本节点的线程在排队，redis锁直接交接给下一个线程，不用释放再重新加锁；
+ *   连续交接 max-handoffs 次之后强制释放一次，给其他节点机会
+ * 3.本地锁条目按引用计数管理，没有线程持有或等待时立即移除，内存只和同时活跃的锁数量有关
+ * 交接要求redis锁由看门狗续期，指定了租期的加锁每次都释放redis锁
+ */
+@Component
+public class TwoTierLockClient {
+    private final RedisLockClient redisLockClient;
+    /**
+     * 连续交接redis锁的最大次数
+     */
+    @Value("${hmdp.lock.max-handoffs:16}")
+    private int maxHandoffs = 16;
+
+    /**
+     * 锁名称 -> 本地锁条目，只包含正在被持有或等待的锁
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public TwoTierLockClient(RedisLockClient redisLockClient) {
+        this.redisLockClient = redisLockClient;
+    }
+
+    /**
+     * 获取一把两级锁，redis中的key和RedisLockClient.getLock(name)相同，两种锁可以互斥
+     */
+    public ILock getLock(String name) {
+        return new TwoTierLock(name, this);
+    }
+
+    /**
+     * 当前本地锁条目的数量
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    int getMaxHandoffs() {
+        return maxHandoffs;
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * 引用计数+1，条目不存在时创建
+     */
+    Entry retain(String name) {
+        return entries.compute(name, (k, e) -> {
+            Entry entry = e == null ? new Entry(k, redisLockClient) : e;
+            entry.refs++;
+            return entry;
+        });
+    }
+
+    /**
+     * 引用计数-1，归零时移除条目；交接过程中等待的线程放弃了，redis锁在这里释放
+     */
+    void release(Entry entry) {
+        boolean[] evicted = {false};
+        entries.computeIfPresent(entry.name, (k, e) -> {
+            if (e != entry || --e.refs > 0) {
+                return e;
+            }
+            evicted[0] = true;
+            return null;
+        });
+        if (evicted[0] && entry.redisHeld) {
+            entry.redisHeld = false;
+            try {
+                entry.redisLock.unlock();
+            } catch (IllegalMonitorStateException e) {
+                //redis锁已经过期
+            }
+        }
+    }
+
+    static class Entry {
+        final String name;
+        final ReentrantLock local = new ReentrantLock();
+        /**
+         * redis锁的持有者是本地锁条目而不是某个线程，这样才能在线程之间交接
+         */
+        final ILock redisLock;
+        /**
+         * 引用计数，只在entries.compute中读写
+         */
+        int refs;
+        /**
+         * 以下字段只由本地锁的持有者读写
+         */
+        volatile boolean redisHeld;
+        boolean watchdog;
+        int handoffs;
+
+        Entry(String name, RedisLockClient redisLockClient) {
+            this.name = name;
+            String owner = redisLockClient.nodeId() + ":" + UUID.randomUUID().toString(true);
+            this.redisLock = new RedisReentrantLock(name, redisLockClient, () -> owner);
+        }
+    }
+}
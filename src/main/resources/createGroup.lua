@@ -0,0 +1,15 @@
+-- stream的key
+local key=KEYS[1]
+-- 消费者组名称
+local group=ARGV[1]
+
+-- 创建消费者组，stream不存在时一并创建 XGROUP CREATE key group 0 MKSTREAM
+-- 组已经存在时会报BUSYGROUP错误，只忽略这一种，其他错误（WRONGTYPE、命令不支持等）原样抛出
+local ok=redis.pcall('xgroup','create',key,group,'0','MKSTREAM')
+if(type(ok)=='table' and ok.err) then
+  if(string.find(ok.err,'BUSYGROUP',1,true)) then
+    return 0
+  end
+  return redis.error_reply(ok.err)
+end
+return 1
@@ -0,0 +1,17 @@
+-- 原消息所在的stream
+local source=KEYS[1]
+-- 死信队列
+local dlq=KEYS[2]
+-- 消费者组
+local group=ARGV[1]
+-- 原消息id
+local id=ARGV[2]
+
+-- 1.写入死信队列 XADD dlq * source ... deliveries ... k1 v1 ...
+local fields={}
+for i=3,#ARGV do
+  fields[#fields+1]=ARGV[i]
+end
+redis.call('xadd',dlq,'*',unpack(fields))
+-- 2.ACK原消息，不再重试 XACK source group id
+return redis.call('xack',source,group,id)
@@ -0,0 +1,18 @@
+-- 店铺hash缓存的key
+local key=KEYS[1]
+-- 计数字段和增量
+local field=ARGV[1]
+local delta=ARGV[2]
+
+-- 缓存不存在或者缓存的是空值时不自增，避免创建只有一个字段的残缺hash
+local id=redis.call('hget',key,'id')
+if(not id or id=='') then
+  return nil
+end
+-- 自增后按原来的剩余时间补回TTL：HINCRBY本身不改TTL，但有的redis兼容实现会清掉，计数不能让缓存变成永不过期
+local ttl=redis.call('pttl',key)
+local value=redis.call('hincrby',key,field,delta)
+if(ttl>0) then
+  redis.call('pexpire',key,ttl)
+end
+return value
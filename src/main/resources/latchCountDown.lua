@@ -0,0 +1,14 @@
+-- 倒计时门闩计数-1，归零时删除并通知等待的线程
+local key=KEYS[1]
+local channel=KEYS[2]
+
+if(redis.call('exists',key)==0) then
+  return 0
+end
+local count=redis.call('decr',key)
+if(count<=0) then
+  redis.call('del',key)
+  redis.call('publish',channel,key)
+  return 0
+end
+return count
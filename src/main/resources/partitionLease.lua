@@ -0,0 +1,21 @@
+-- 分区租约的key
+local key=KEYS[1]
+-- 消费者名称
+local owner=ARGV[1]
+-- 租约时长，毫秒
+local ttl=ARGV[2]
+
+-- 获取当前持有者 get key
+local current=redis.call('get',key)
+-- 自己持有，续约
+if(current==owner) then
+  redis.call('pexpire',key,ttl)
+  return 1
+end
+-- 没人持有，抢占
+if(not current) then
+  redis.call('set',key,owner,'px',ttl)
+  return 1
+end
+-- 被其他消费者持有
+return 0
@@ -0,0 +1,31 @@
+-- 令牌桶限流，桶保存在hash中：tokens 剩余令牌数，ts 上次计算的时间戳
+-- 令牌桶key
+local key = KEYS[1]
+-- 每秒生成的令牌数
+local rate = tonumber(ARGV[1])
+-- 桶容量
+local capacity = tonumber(ARGV[2])
+-- 当前时间戳，毫秒，用redis的时钟，所有节点按同一个时钟补充令牌
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 1.取出桶，不存在时是满的
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+-- 2.按经过的时间补充令牌，不超过容量
+if(now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+-- 3.有令牌就取走一个，返回0；没有返回还要等多少毫秒才有下一个令牌
+local wait = 0
+if(tokens >= 1) then
+    tokens = tokens - 1
+else
+    wait = math.ceil((1 - tokens) * 1000 / rate)
+end
+redis.call('hmset', key, 'tokens', tostring(tokens), 'ts', tostring(ts))
+-- 4.桶补满所需的时间之后自动过期，不活跃的用户不会一直占着内存
+redis.call('pexpire', key, math.ceil(capacity * 1000 / rate) + 1000)
+return wait
@@ -0,0 +1,16 @@
+-- 可重入锁，hash结构：field 是持有者标识，value 是重入次数
+-- 锁的key
+local key=KEYS[1]
+-- 锁的租期，毫秒
+local leaseTime=ARGV[1]
+-- 持有者标识
+local owner=ARGV[2]
+
+-- 锁不存在，或者就是自己持有的，重入次数+1并刷新租期
+if(redis.call('exists',key)==0 or redis.call('hexists',key,owner)==1) then
+  redis.call('hincrby',key,owner,1)
+  redis.call('pexpire',key,leaseTime)
+  return nil
+end
+-- 被别人持有，返回锁的剩余时间，调用方最多等这么久就需要重试
+return redis.call('pttl',key)
@@ -0,0 +1,10 @@
+-- 看门狗续期：仍然是自己持有的锁才续期
+local key=KEYS[1]
+local leaseTime=ARGV[1]
+local owner=ARGV[2]
+
+if(redis.call('hexists',key,owner)==1) then
+  redis.call('pexpire',key,leaseTime)
+  return 1
+end
+return 0
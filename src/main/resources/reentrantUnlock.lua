@@ -0,0 +1,23 @@
+-- 锁的key
+local key=KEYS[1]
+-- 锁释放的通知频道
+local channel=KEYS[2]
+-- 锁的租期，毫秒
+local leaseTime=ARGV[1]
+-- 持有者标识
+local owner=ARGV[2]
+
+-- 不是自己持有的锁（已经过期或者被别人拿走），返回nil
+if(redis.call('hexists',key,owner)==0) then
+  return nil
+end
+-- 重入次数-1，还有剩余说明外层还持有锁，刷新租期
+local count=redis.call('hincrby',key,owner,-1)
+if(count>0) then
+  redis.call('pexpire',key,leaseTime)
+  return 0
+end
+-- 完全释放，通知等待的线程
+redis.call('del',key)
+redis.call('publish',channel,key)
+return 1
@@ -0,0 +1,43 @@
+-- 读写锁的读锁，hash结构：mode 是 read/write，持有者..':r' 是读锁重入次数，持有者..':w' 是写锁重入次数
+-- 每个读者的到期时间单独记在zset里（member 是持有者，score 是到期时间戳），挂掉的读者到期就被清理，不会被其他读者的续期带着一直活着
+local key=KEYS[1]
+local timeoutKey=KEYS[2]
+-- 锁的租期，毫秒
+local leaseTime=tonumber(ARGV[1])
+-- 持有者标识
+local owner=ARGV[2]
+local time=redis.call('time')
+local now=tonumber(time[1])*1000+math.floor(tonumber(time[2])/1000)
+
+-- 1.清理已经到期的读者，没有任何持有者时删除锁
+local expired=redis.call('zrangebyscore',timeoutKey,'-inf',now)
+if(#expired>0) then
+  for _,reader in ipairs(expired) do
+    redis.call('hdel',key,reader..':r')
+  end
+  redis.call('zremrangebyscore',timeoutKey,'-inf',now)
+  if(redis.call('hlen',key)<=1) then
+    redis.call('del',key,timeoutKey)
+  end
+end
+local mode=redis.call('hget',key,'mode')
+-- 2.没有锁、已经是读锁、或者自己持有写锁（锁降级），都可以加读锁
+if(mode==false or mode=='read' or redis.call('hexists',key,owner..':w')==1) then
+  if(mode==false) then
+    redis.call('hset',key,'mode','read')
+  end
+  redis.call('hincrby',key,owner..':r',1)
+  -- 记录自己的到期时间，重入时只延长不缩短
+  local deadline=redis.call('zscore',timeoutKey,owner)
+  if(not deadline or tonumber(deadline)<now+leaseTime) then
+    redis.call('zadd',timeoutKey,now+leaseTime,owner)
+  end
+  -- key的租期覆盖所有读者，只延长不缩短
+  if(redis.call('pttl',key)<leaseTime) then
+    redis.call('pexpire',key,leaseTime)
+  end
+  redis.call('pexpire',timeoutKey,redis.call('pttl',key))
+  return nil
+end
+-- 3.被写锁占用，返回剩余时间
+return redis.call('pttl',key)
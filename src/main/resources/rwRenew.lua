@@ -0,0 +1,23 @@
+-- 读写锁看门狗续期：仍然是自己持有的锁才续期，读者同时延长自己的到期时间
+local key=KEYS[1]
+local timeoutKey=KEYS[2]
+local leaseTime=tonumber(ARGV[1])
+-- 持有者标识..':r' 或 ..':w'
+local field=ARGV[2]
+
+if(redis.call('hexists',key,field)==0) then
+  return 0
+end
+if(string.sub(field,-2)==':r') then
+  local time=redis.call('time')
+  local now=tonumber(time[1])*1000+math.floor(tonumber(time[2])/1000)
+  redis.call('zadd',timeoutKey,now+leaseTime,string.sub(field,1,-3))
+  -- 其他读者可能还需要更长的租期，只延长不缩短
+  if(redis.call('pttl',key)<leaseTime) then
+    redis.call('pexpire',key,leaseTime)
+  end
+else
+  redis.call('pexpire',key,leaseTime)
+end
+redis.call('pexpire',timeoutKey,redis.call('pttl',key))
+return 1
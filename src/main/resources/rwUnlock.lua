@@ -0,0 +1,35 @@
+-- 读写锁释放
+local key=KEYS[1]
+-- 锁释放的通知频道
+local channel=KEYS[2]
+-- 读者到期时间的zset
+local timeoutKey=KEYS[3]
+-- 持有者标识..':r' 或 ..':w'
+local field=ARGV[1]
+
+-- 不是自己持有的，返回nil
+if(redis.call('hexists',key,field)==0) then
+  return nil
+end
+local count=redis.call('hincrby',key,field,-1)
+-- 还有重入次数，返回0
+if(count>0) then
+  return 0
+end
+redis.call('hdel',key,field)
+if(string.sub(field,-2)==':r') then
+  redis.call('zrem',timeoutKey,string.sub(field,1,-3))
+end
+-- 只剩mode字段，说明没有任何持有者了，删除锁并通知，返回1
+if(redis.call('hlen',key)<=1) then
+  redis.call('del',key,timeoutKey)
+  redis.call('publish',channel,key)
+  return 1
+end
+-- 写锁释放了但自己还持有读锁，降级成读锁，通知等待的读者
+if(string.sub(field,-2)==':w') then
+  redis.call('hset',key,'mode','read')
+  redis.call('publish',channel,key)
+end
+-- 自己这一类锁已经完全释放，但还有其他持有者
+return 2
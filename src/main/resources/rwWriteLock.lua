@@ -0,0 +1,36 @@
+-- 读写锁的写锁，结构同rwReadLock.lua
+local key=KEYS[1]
+local timeoutKey=KEYS[2]
+-- 锁的租期，毫秒
+local leaseTime=ARGV[1]
+-- 持有者标识
+local owner=ARGV[2]
+local time=redis.call('time')
+local now=tonumber(time[1])*1000+math.floor(tonumber(time[2])/1000)
+
+-- 1.清理已经到期的读者，挂掉的读者不会一直挡住写锁
+local expired=redis.call('zrangebyscore',timeoutKey,'-inf',now)
+if(#expired>0) then
+  for _,reader in ipairs(expired) do
+    redis.call('hdel',key,reader..':r')
+  end
+  redis.call('zremrangebyscore',timeoutKey,'-inf',now)
+  if(redis.call('hlen',key)<=1) then
+    redis.call('del',key,timeoutKey)
+  end
+end
+local mode=redis.call('hget',key,'mode')
+-- 2.没有锁，或者是自己持有的写锁（重入）
+if(mode==false or (mode=='write' and redis.call('hexists',key,owner..':w')==1)) then
+  redis.call('hset',key,'mode','write')
+  redis.call('hincrby',key,owner..':w',1)
+  redis.call('pexpire',key,leaseTime)
+  return nil
+end
+-- 3.有读者或者别人的写锁，返回剩余时间；最早的读者到期时也要重试，它可能已经挂掉了
+local ttl=redis.call('pttl',key)
+local first=redis.call('zrange',timeoutKey,0,0,'WITHSCORES')
+if(first[2]) then
+  ttl=math.min(ttl,math.max(1,tonumber(first[2])-now))
+end
+return ttl
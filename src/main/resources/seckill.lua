@@ -5,16 +5,34 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.订单消息所在的分区stream，由调用方按用户id或优惠券id哈希得到
+local streamKey = ARGV[4]
+-- 1.5.当前时间戳，毫秒
+local now = tonumber(ARGV[5])
+-- 1.6.订单状态的有效期，秒
+local statusTtl = ARGV[6]
 
 -- 2.数据key
 -- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.秒杀时间窗口key
+local windowKey = 'seckill:window:' .. voucherId
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+-- 3.0.判断是否在秒杀时间窗口内 hmget windowKey begin end
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and now < tonumber(window[1])) then
+    -- 秒杀尚未开始，返回4
+    return 4
+end
+if(window[2] and now > tonumber(window[2])) then
+    -- 秒杀已经结束，返回5
+    return 5
+end
+-- 3.1.判断库存是否充足 get stockKey，库存key不存在（还没预热）也按库存不足处理
+if((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
@@ -27,6 +45,10 @@ end
 redis.call('incrby', stockKey, -1)
 -- 3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.6.发送消息到队列中， XADD stream.orders:i * k1 v1 k2 v2 ...，streamKey为空时是本地队列模式，由调用方把订单放入本节点的内存队列
+if(streamKey ~= '') then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+-- 3.7.订单状态：排队中，消费者创建订单后改为CREATED或FAILED
+redis.call('set', 'seckill:status:' .. orderId, 'QUEUED', 'EX', statusTtl)
 return 0
\ No newline at end of file
@@ -0,0 +1,56 @@
+-- 分片库存模式下的秒杀脚本
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.订单id
+local orderId = ARGV[3]
+-- 1.4.订单消息所在的分区stream
+local streamKey = ARGV[4]
+-- 1.5.要扣减的库存分片
+local shard = ARGV[5]
+-- 1.6.用户所属的分片（一人一单的集合只放在用户所属分片上，保证去重是精确的）
+local homeShard = ARGV[6]
+-- 1.7.当前时间戳，毫秒
+local now = tonumber(ARGV[7])
+-- 1.8.订单状态的有效期，秒
+local statusTtl = ARGV[8]
+
+-- 2.数据key
+-- 2.1.库存分片key
+local stockKey = 'seckill:stock:' .. voucherId .. ':' .. shard
+-- 2.2.用户所属分片的订单key
+local orderKey = 'seckill:order:' .. voucherId .. ':' .. homeShard
+
+-- 3.脚本业务
+if(shard == homeShard) then
+    -- 3.0.第一次调用时判断是否在秒杀时间窗口内 hmget windowKey begin end
+    local window = redis.call('hmget', 'seckill:window:' .. voucherId, 'begin', 'end')
+    if(window[1] and now < tonumber(window[1])) then
+        return 4
+    end
+    if(window[2] and now > tonumber(window[2])) then
+        return 5
+    end
+    -- 3.1.在用户所属分片上判断是否重复下单
+    if(redis.call('sismember', orderKey, userId) == 1) then
+        return 2
+    end
+    -- 3.2.先占住一人一单的名额，后面无论从哪个分片扣库存，同一个用户的并发请求都会在这里被拦下
+    redis.call('sadd', orderKey, userId)
+end
+-- 3.3.判断本分片库存是否充足
+if((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    -- 本分片库存不足，返回3，由调用方继续探测其他分片
+    return 3
+end
+-- 3.4.扣库存
+redis.call('incrby', stockKey, -1)
+-- 3.5.发送消息到队列中，streamKey为空时是本地队列模式，由调用方把订单放入本节点的内存队列
+if(streamKey ~= '') then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+-- 3.6.订单状态：排队中
+redis.call('set', 'seckill:status:' .. orderId, 'QUEUED', 'EX', statusTtl)
+return 0
@@ -0,0 +1,25 @@
+-- 带租期的信号量，zset结构：member 是许可id，score 是许可过期的时间戳
+local key=KEYS[1]
+-- 许可总数
+local permits=tonumber(ARGV[1])
+-- 许可租期，毫秒
+local leaseTime=tonumber(ARGV[2])
+-- 许可id
+local permitId=ARGV[3]
+-- 当前时间戳，毫秒，用redis的时钟，各节点本地时钟有偏差也不会提前回收别人的许可
+local time=redis.call('time')
+local now=tonumber(time[1])*1000+math.floor(tonumber(time[2])/1000)
+
+-- 1.清理过期的许可，持有者挂掉也不会永久占用
+redis.call('zremrangebyscore',key,'-inf',now)
+-- 2.还有空余许可就发放
+if(redis.call('zcard',key)<permits) then
+  redis.call('zadd',key,now+leaseTime,permitId)
+  if(redis.call('pttl',key)<leaseTime) then
+    redis.call('pexpire',key,leaseTime)
+  end
+  return nil
+end
+-- 3.没有空余，返回最早一个许可过期还要多久
+local first=redis.call('zrange',key,0,0,'WITHSCORES')
+return math.max(1,tonumber(first[2])-now)
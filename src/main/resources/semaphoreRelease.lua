@@ -0,0 +1,11 @@
+-- 归还许可并通知等待的线程
+local key=KEYS[1]
+local channel=KEYS[2]
+local permitId=ARGV[1]
+
+if(redis.call('zrem',key,permitId)==1) then
+  redis.call('publish',channel,key)
+  return 1
+end
+-- 许可已经过期被清理了
+return 0
@@ -0,0 +1,251 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheBuffer;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopCacheCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * CacheClient测试：二进制格式往返、与旧JSON格式的兼容、批量查询和批量写入，跑在进程内redis上
+ */
+class CacheClientTests extends RedisTestSupport {
+    private static final String KEY = "cache:shop:";
+
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @BeforeEach
+    void setUp() {
+        cacheRebuildExecutor = new CacheRebuildExecutor(new SimpleMeterRegistry(), 2, 100, 5000, 1000);
+        cacheRebuildExecutor.init();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        cacheRebuildExecutor.destroy();
+    }
+
+    @Test
+    void shopRoundTrip() {
+        ShopCacheCodec codec = new ShopCacheCodec();
+        Shop full = shop(1L);
+        Shop sparse = new Shop().setId(2L).setName("只有名字").setAvgPrice(-1L);
+        for (Shop shop : Arrays.asList(full, sparse)) {
+            CacheBuffer buffer = new CacheBuffer(16);
+            codec.encode(shop, buffer);
+            assertEquals(shop, codec.decode(new CacheBuffer(buffer.toByteArray(), 0), Shop.class, codec.version()));
+        }
+    }
+
+    @Test
+    void binaryIsSmallerAndReadableByJsonWriter() {
+        CacheClient binaryClient = cacheClient("binary");
+        CacheClient jsonClient = cacheClient("json");
+        binaryClient.set(KEY + 1, shop(1L), 30L, TimeUnit.MINUTES);
+        jsonClient.set(KEY + 2, shop(2L), 30L, TimeUnit.MINUTES);
+        long binarySize = stringRedisTemplate.execute(c -> c.strLen((KEY + 1).getBytes(StandardCharsets.UTF_8)), true);
+        long jsonSize = stringRedisTemplate.execute(c -> c.strLen((KEY + 2).getBytes(StandardCharsets.UTF_8)), true);
+        assertTrue(binarySize < jsonSize, binarySize + " >= " + jsonSize);
+        //两种编码互相都能读
+        assertEquals(shop(2L), binaryClient.queryWithPassThrough(KEY, 2L, Shop.class, id -> null, 30L, TimeUnit.MINUTES));
+        assertEquals(shop(1L), jsonClient.queryWithPassThrough(KEY, 1L, Shop.class, id -> null, 30L, TimeUnit.MINUTES));
+    }
+
+    @Test
+    void readsLegacyJson() {
+        CacheClient cacheClient = cacheClient("binary");
+        //以前直接存的JSON：普通缓存、空值、包了一层RedisData的逻辑过期缓存
+        stringRedisTemplate.opsForValue().set(KEY + 1, JSONUtil.toJsonStr(shop(1L)));
+        stringRedisTemplate.opsForValue().set(KEY + 0, "");
+        RedisData redisData = new RedisData();
+        redisData.setData(shop(3L));
+        redisData.setExpireTime(LocalDateTime.now().plusHours(1));
+        stringRedisTemplate.opsForValue().set(KEY + 3, JSONUtil.toJsonStr(redisData));
+        AtomicInteger fallbacks = new AtomicInteger();
+        assertEquals(shop(1L), cacheClient.queryWithPassThrough(KEY, 1L, Shop.class, id -> {
+            fallbacks.incrementAndGet();
+            return null;
+        }, 30L, TimeUnit.MINUTES));
+        assertNull(cacheClient.queryWithPassThrough(KEY, 0L, Shop.class, id -> {
+            fallbacks.incrementAndGet();
+            return null;
+        }, 30L, TimeUnit.MINUTES));
+        assertEquals(shop(3L), cacheClient.queryWithLogicalExpire(KEY, 3L, Shop.class, id -> {
+            fallbacks.incrementAndGet();
+            return null;
+        }, 30L, TimeUnit.MINUTES));
+        assertEquals(0, fallbacks.get());
+    }
+
+    @Test
+    void unknownVersionFallsBackToDatabase() {
+        CacheClient cacheClient = cacheClient("binary");
+        cacheClient.set(KEY + 1, shop(1L), 30L, TimeUnit.MINUTES);
+        //把头部的schema版本改成一个不认识的版本
+        byte[] key = (KEY + 1).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute(c -> {
+            c.setRange(key, new byte[]{99}, 2);
+            return null;
+        }, true);
+        AtomicInteger fallbacks = new AtomicInteger();
+        assertEquals(shop(1L), cacheClient.queryWithPassThrough(KEY, 1L, Shop.class, id -> {
+            fallbacks.incrementAndGet();
+            return shop(id);
+        }, 30L, TimeUnit.MINUTES));
+        assertEquals(1, fallbacks.get());
+        //回源之后按当前版本重新写入，再读就不用回源了
+        cacheClient.queryWithPassThrough(KEY, 1L, Shop.class, id -> {
+            fallbacks.incrementAndGet();
+            return shop(id);
+        }, 30L, TimeUnit.MINUTES);
+        assertEquals(1, fallbacks.get());
+    }
+
+    @Test
+    void multiGetKeepsOrderAndLoadsMissesOnce() {
+        CacheClient cacheClient = cacheClient("binary");
+        //1已缓存，0不存在，2、3未缓存
+        cacheClient.set(KEY + 1, shop(1L), 30L, TimeUnit.MINUTES);
+        List<Collection<Long>> batches = new ArrayList<>();
+        Function<Collection<Long>, Map<Long, Shop>> loader = ids -> {
+            batches.add(new ArrayList<>(ids));
+            return ids.stream().filter(id -> id > 0).collect(Collectors.toMap(id -> id, CacheClientTests::shop));
+        };
+        List<Shop> shops = cacheClient.queryMultiWithPassThrough(KEY, Arrays.asList(3L, 1L, 0L, 2L, 3L), Shop.class, loader, 30L, TimeUnit.MINUTES);
+        assertEquals(Arrays.asList(shop(3L), shop(1L), null, shop(2L), shop(3L)), shops);
+        //未命中的id只查一次数据库，重复的id只查一次
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(3L, 0L, 2L), batches.get(0));
+        //写回之后再查全部命中缓存，包括空值
+        shops = cacheClient.queryMultiWithPassThrough(KEY, Arrays.asList(0L, 2L, 3L), Shop.class, loader, 30L, TimeUnit.MINUTES);
+        assertEquals(Arrays.asList(null, shop(2L), shop(3L)), shops);
+        assertEquals(1, batches.size());
+        assertEquals("", stringRedisTemplate.opsForValue().get(KEY + 0));
+    }
+
+    @Test
+    void softExpireServesStaleAndRefreshesInBackground() throws InterruptedException {
+        CacheClient cacheClient = cacheClient("binary");
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> loader = id -> shop(id).setSold(loads.incrementAndGet());
+        //1.未命中时同步回源，redis里的TTL是硬过期时间
+        assertEquals(1, cacheClient.queryWithSoftExpire(KEY, 1L, Shop.class, loader, 500L, 60_000L, TimeUnit.MILLISECONDS).getSold());
+        assertTrue(stringRedisTemplate.getExpire(KEY + 1, TimeUnit.MILLISECONDS) > 500);
+        //2.软过期之前直接返回缓存
+        assertEquals(1, cacheClient.queryWithSoftExpire(KEY, 1L, Shop.class, loader, 500L, 60_000L, TimeUnit.MILLISECONDS).getSold());
+        assertEquals(1, loads.get());
+        //3.软过期之后先返回旧值，后台刷新完成后返回新值
+        Thread.sleep(600);
+        assertEquals(1, cacheClient.queryWithSoftExpire(KEY, 1L, Shop.class, loader, 500L, 60_000L, TimeUnit.MILLISECONDS).getSold());
+        long deadline = System.currentTimeMillis() + 5000;
+        int sold = 1;
+        while (sold == 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            sold = cacheClient.queryWithSoftExpire(KEY, 1L, Shop.class, loader, 500L, 60_000L, TimeUnit.MILLISECONDS).getSold();
+        }
+        assertEquals(2, sold);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void batchSoftExpireWriteIsServedWithoutLoading() {
+        CacheClient cacheClient = cacheClient("binary");
+        Map<String, Shop> entries = new LinkedHashMap<>();
+        for (long id = 1; id <= 300; id++) {
+            entries.put(KEY + id, shop(id));
+        }
+        cacheClient.setMultiWithSoftExpire(entries, 30L, 60L, TimeUnit.MINUTES);
+        AtomicInteger loads = new AtomicInteger();
+        for (long id = 1; id <= 300; id++) {
+            Shop shop = cacheClient.queryWithSoftExpire(KEY, id, Shop.class, i -> {
+                loads.incrementAndGet();
+                return shop(i);
+            }, 30L, 60L, TimeUnit.MINUTES);
+            assertEquals(shop(id), shop);
+        }
+        assertEquals(0, loads.get());
+        assertTrue(stringRedisTemplate.getExpire(KEY + 1, TimeUnit.MINUTES) > 30);
+    }
+
+    @Test
+    void mixesQueryModesOnOnePrefixWithLocalCache() {
+        CacheClient cacheClient = cacheClient("binary", true);
+        Function<Long, Shop> loader = id -> id > 0 ? shop(id) : null;
+        //1.穿透模式把空值和没有逻辑过期时间的值放进一级缓存，第一次回源写redis，第二次命中redis后写一级缓存
+        for (int i = 0; i < 2; i++) {
+            assertNull(cacheClient.queryWithPassThrough(KEY, 0L, Shop.class, loader, 30L, TimeUnit.MINUTES));
+            assertEquals(shop(1L), cacheClient.queryWithPassThrough(KEY, 1L, Shop.class, loader, 30L, TimeUnit.MINUTES));
+        }
+        //2.同一个前缀再按逻辑过期查询，一级缓存里的这两种值都能处理
+        assertNull(cacheClient.queryWithLogicalExpire(KEY, 0L, Shop.class, loader, 30L, TimeUnit.MINUTES));
+        assertEquals(shop(1L), cacheClient.queryWithLogicalExpire(KEY, 1L, Shop.class, loader, 30L, TimeUnit.MINUTES));
+        //3.逻辑过期写入的一级缓存再按穿透模式查询
+        cacheClient.setWithLogicalExpire(KEY + 2, shop(2L), 30L, TimeUnit.MINUTES);
+        assertEquals(shop(2L), cacheClient.queryWithLogicalExpire(KEY, 2L, Shop.class, loader, 30L, TimeUnit.MINUTES));
+        assertEquals(shop(2L), cacheClient.queryWithPassThrough(KEY, 2L, Shop.class, loader, 30L, TimeUnit.MINUTES));
+    }
+
+    private CacheClient cacheClient(String codecMode) {
+        return cacheClient(codecMode, false);
+    }
+
+    private CacheClient cacheClient(String codecMode, boolean localEnabled) {
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate);
+        if (localEnabled) {
+            ReflectionTestUtils.setField(cacheClient, "meterRegistry", new SimpleMeterRegistry());
+            ReflectionTestUtils.setField(cacheClient, "localEnabled", true);
+            ReflectionTestUtils.setField(cacheClient, "localMaxWeight", 1_000_000L);
+            ReflectionTestUtils.setField(cacheClient, "localExpireAfterWriteMs", 30_000L);
+        }
+        ReflectionTestUtils.setField(cacheClient, "redisMessageListenerContainer", listenerContainer());
+        ReflectionTestUtils.setField(cacheClient, "cacheCodecs", Arrays.asList(new JsonCacheCodec(), new ShopCacheCodec()));
+        ReflectionTestUtils.setField(cacheClient, "codecMode", codecMode);
+        ReflectionTestUtils.setField(cacheClient, "cacheRebuildExecutor", cacheRebuildExecutor);
+        ReflectionTestUtils.invokeMethod(cacheClient, "init");
+        return cacheClient;
+    }
+
+    private static Shop shop(Long id) {
+        return new Shop()
+                .setId(id)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/1.jpg,https://qcloud.dpfile.com/pc/2.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp;
+
+import com.hmdp.utils.CacheRebuildExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存重建线程池测试：去重、热点优先、队列上限、超时中断
+ * 只有一个线程，先用一个阻塞任务占住线程，后面的任务都在排队
+ */
+class CacheRebuildExecutorTests {
+    private SimpleMeterRegistry meterRegistry;
+    private CacheRebuildExecutor executor;
+    private CountDownLatch release;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        executor = new CacheRebuildExecutor(meterRegistry, 1, 3, 5000, 5000);
+        executor.init();
+        release = new CountDownLatch(1);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        release.countDown();
+        executor.destroy();
+    }
+
+    @Test
+    void deduplicatesAndRunsHotKeysFirst() throws InterruptedException {
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        assertTrue(executor.submit("blocker", this::awaitRelease));
+        waitUntilQueued(0);
+        assertTrue(executor.submit("cold", () -> record(order, "cold", done)));
+        assertTrue(executor.submit("hot", () -> record(order, "hot", done)));
+        assertTrue(executor.submit("warm", () -> record(order, "warm", done)));
+        //同一个key重复提交只记请求次数
+        for (int i = 0; i < 8; i++) {
+            assertFalse(executor.submit("hot", () -> record(order, "hot-duplicate", done)));
+        }
+        assertFalse(executor.submit("warm", () -> record(order, "warm-duplicate", done)));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("hot", "warm", "cold"), order);
+        assertEquals(9, meterRegistry.get("cache.rebuild.deduplicated").counter().count());
+    }
+
+    @Test
+    void rejectsWhenQueueIsFull() {
+        assertTrue(executor.submit("blocker", this::awaitRelease));
+        waitUntilQueued(0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(executor.submit("key" + i, () -> { }));
+        }
+        assertFalse(executor.submit("key3", () -> { }));
+        assertEquals(3, executor.getQueued());
+        assertEquals(1, meterRegistry.get("cache.rebuild.rejected").tag("reason", "full").counter().count());
+    }
+
+    @Test
+    void interruptsRebuildsThatTimeOut() throws InterruptedException {
+        CacheRebuildExecutor shortTimeout = new CacheRebuildExecutor(meterRegistry, 1, 10, 100, 1000);
+        shortTimeout.init();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            shortTimeout.submit("slow", () -> {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                done.countDown();
+            });
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            assertTrue(interrupted.get());
+            assertEquals(1, meterRegistry.get("cache.rebuild.timeout").tag("stage", "running").counter().count());
+        } finally {
+            shortTimeout.destroy();
+        }
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void waitUntilQueued(int expected) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getQueued() != expected && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static void record(List<String> order, String name, CountDownLatch done) {
+        order.add(name);
+        done.countDown();
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * id生成器测试：redis发号和雪花算法的时间戳换算一致，切换生成器后id仍然递增，跑在进程内redis上
+ * 时区固定为东八区，UTC下两种换算碰巧相同
+ */
+class IdWorkerTests extends RedisTestSupport {
+    private TimeZone defaultZone;
+    private RedisIdWorker redisIdWorker;
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    @BeforeEach
+    void setUp() {
+        defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Shanghai"));
+        redisIdWorker = new RedisIdWorker(stringRedisTemplate);
+        snowflakeIdWorker = new SnowflakeIdWorker(stringRedisTemplate);
+        ReflectionTestUtils.setField(snowflakeIdWorker, "leaseMs", 30_000L);
+        ReflectionTestUtils.setField(snowflakeIdWorker, "maxBackwardMs", 10L);
+        snowflakeIdWorker.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        snowflakeIdWorker.destroy();
+        TimeZone.setDefault(defaultZone);
+    }
+
+    @Test
+    void idsIncreaseAcrossWorkers() throws InterruptedException {
+        //1.先用redis发号，再切到雪花算法
+        long redisId = redisIdWorker.nextId("order");
+        long snowflakeId = snowflakeIdWorker.nextId("order");
+        assertTrue(snowflakeId > redisId, snowflakeId + " <= " + redisId);
+        //2.两者的秒级时间戳相同或者只差一秒
+        long diff = (snowflakeId >>> 32) - (redisId >>> 32);
+        assertTrue(diff == 0 || diff == 1, "时间戳相差" + diff + "秒");
+        //3.下一秒切回redis发号也是递增的
+        Thread.sleep(1100);
+        long nextRedisId = redisIdWorker.nextId("order");
+        assertTrue(nextRedisId > snowflakeId, nextRedisId + " <= " + snowflakeId);
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisBloomFilter;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 布隆过滤器测试：重建、误判率、新增后其他节点同步，跑在进程内redis上
+ */
+class RedisBloomFilterTests extends RedisTestSupport {
+    private static final String PREFIX = "cache:shop:";
+
+    @Test
+    void allowsEverythingUntilRebuilt() {
+        RedisBloomFilter filter = new RedisBloomFilter(PREFIX, 1000, 0.01, stringRedisTemplate);
+        assertTrue(filter.mightContain(-1L));
+        filter.rebuild(ids(1, 10));
+        assertFalse(filter.mightContain(-1L));
+    }
+
+    @Test
+    void rejectsUnknownIdsWithinFpp() {
+        RedisBloomFilter filter = new RedisBloomFilter(PREFIX, 1000, 0.01, stringRedisTemplate);
+        filter.rebuild(ids(1, 1000));
+        for (long id = 1; id <= 1000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        long falsePositives = LongStream.rangeClosed(1_000_001, 1_010_000).filter(filter::mightContain).count();
+        //期望误判率1%，留一些余量
+        assertTrue(falsePositives < 300, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void otherNodesSeeAddsAfterSync() {
+        RedisBloomFilter node1 = new RedisBloomFilter(PREFIX, 1000, 0.01, stringRedisTemplate);
+        RedisBloomFilter node2 = new RedisBloomFilter(PREFIX, 1000, 0.01, stringRedisTemplate);
+        node1.rebuild(ids(1, 100));
+        node2.rebuild(ids(1, 100));
+        node1.add(5000L);
+        assertTrue(node1.mightContain(5000L));
+        //没有订阅消息时，定时同步也能拿到其他节点新增的id
+        node2.sync();
+        assertTrue(node2.mightContain(5000L));
+        //重建不会丢掉已经在redis里的id
+        RedisBloomFilter node3 = new RedisBloomFilter(PREFIX, 1000, 0.01, stringRedisTemplate);
+        node3.rebuild(ids(1, 100));
+        assertTrue(node3.mightContain(5000L));
+    }
+
+    private static List<Long> ids(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+    }
+}
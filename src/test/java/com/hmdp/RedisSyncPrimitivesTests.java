@@ -0,0 +1,211 @@
+package com.hmdp;
+
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisCountDownLatch;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.RedisReadWriteLock;
+import com.hmdp.utils.RedisSemaphore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 读写锁、信号量、倒计时门闩的并发测试，跑在进程内redis上，不需要外部服务
+ */
+class RedisSyncPrimitivesTests extends RedisTestSupport {
+    private static final int THREADS = 16;
+
+    private RedisLockClient redisLockClient;
+    private ExecutorService es;
+
+    @BeforeEach
+    void setUp() {
+        redisLockClient = new RedisLockClient(stringRedisTemplate, listenerContainer());
+        redisLockClient.init();
+        es = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        es.shutdownNow();
+        redisLockClient.destroy();
+    }
+
+    @Test
+    void readersShareWritersExclude() throws InterruptedException {
+        RedisReadWriteLock rwLock = redisLockClient.getReadWriteLock("test");
+        AtomicInteger readers = new AtomicInteger();
+        AtomicInteger writers = new AtomicInteger();
+        AtomicInteger maxReaders = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(THREADS * 20);
+        for (int i = 0; i < THREADS; i++) {
+            boolean writer = i % 4 == 0;
+            es.submit(() -> {
+                for (int j = 0; j < 20; j++) {
+                    ILock lock = writer ? rwLock.writeLock() : rwLock.readLock();
+                    try {
+                        assertTrue(lock.tryLock(10, -1, TimeUnit.SECONDS));
+                        try {
+                            if (writer) {
+                                //写锁持有期间不能有其他读者或写者
+                                if (writers.incrementAndGet() != 1 || readers.get() != 0) {
+                                    violations.incrementAndGet();
+                                }
+                                Thread.sleep(1);
+                                writers.decrementAndGet();
+                            } else {
+                                int current = readers.incrementAndGet();
+                                maxReaders.accumulateAndGet(current, Math::max);
+                                if (writers.get() != 0) {
+                                    violations.incrementAndGet();
+                                }
+                                Thread.sleep(1);
+                                readers.decrementAndGet();
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (Throwable e) {
+                        violations.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        assertEquals(0, violations.get());
+        assertTrue(maxReaders.get() > 1, "读锁之间应该可以并发");
+    }
+
+    @Test
+    void writeLockIsReentrantAndDowngrades() throws Exception {
+        RedisReadWriteLock rwLock = redisLockClient.getReadWriteLock("reentrant");
+        assertTrue(rwLock.writeLock().tryLock(0, 10, TimeUnit.SECONDS));
+        assertTrue(rwLock.writeLock().tryLock(0, 10, TimeUnit.SECONDS));
+        //持有写锁时可以再加读锁
+        assertTrue(rwLock.readLock().tryLock(0, 10, TimeUnit.SECONDS));
+        //写锁还没释放，其他线程的读锁进不来
+        assertFalse(es.submit(() -> rwLock.readLock().tryLock(0, 10, TimeUnit.SECONDS)).get(10, TimeUnit.SECONDS));
+        rwLock.writeLock().unlock();
+        rwLock.writeLock().unlock();
+        //写锁完全释放后降级为读锁，其他线程的读锁可以进来，写锁不行
+        assertTrue(es.submit(() -> {
+            boolean isLock = rwLock.readLock().tryLock(0, 10, TimeUnit.SECONDS);
+            rwLock.readLock().unlock();
+            return isLock;
+        }).get(10, TimeUnit.SECONDS));
+        assertFalse(es.submit(() -> rwLock.writeLock().tryLock(0, 10, TimeUnit.SECONDS)).get(10, TimeUnit.SECONDS));
+        rwLock.readLock().unlock();
+        //不持有锁时释放要报错
+        assertThrows(IllegalMonitorStateException.class, () -> rwLock.readLock().unlock());
+    }
+
+    @Test
+    void semaphoreCapsConcurrency() throws InterruptedException {
+        int permits = 3;
+        RedisSemaphore semaphore = redisLockClient.getSemaphore("test", permits);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(THREADS * 10);
+        for (int i = 0; i < THREADS; i++) {
+            es.submit(() -> {
+                for (int j = 0; j < 10; j++) {
+                    try {
+                        String permitId = semaphore.tryAcquire(10, 10, TimeUnit.SECONDS);
+                        assertNotNull(permitId);
+                        try {
+                            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                            Thread.sleep(1);
+                            running.decrementAndGet();
+                        } finally {
+                            assertTrue(semaphore.release(permitId));
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertTrue(maxRunning.get() <= permits, "同时持有许可的线程数超过了许可总数：" + maxRunning.get());
+        assertEquals(permits, semaphore.availablePermits());
+    }
+
+    @Test
+    void semaphorePermitExpires() throws InterruptedException {
+        RedisSemaphore semaphore = redisLockClient.getSemaphore("lease", 1);
+        //拿到许可后不归还，模拟持有者挂掉；租期留足几秒，不受进程内redis的速度影响
+        long start = System.nanoTime();
+        assertNotNull(semaphore.tryAcquire(0, 3, TimeUnit.SECONDS));
+        assertNull(semaphore.tryAcquire(0, 3, TimeUnit.SECONDS));
+        //许可到期后自动回收，等待的线程可以拿到，等待时间不会少于租期
+        String permitId = semaphore.tryAcquire(10, 10, TimeUnit.SECONDS);
+        assertNotNull(permitId);
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(2));
+        assertTrue(semaphore.release(permitId));
+    }
+
+    @Test
+    void crashedReaderExpiresOnItsOwnLease() throws Exception {
+        RedisReadWriteLock rwLock = redisLockClient.getReadWriteLock("crashed");
+        //一个读者拿到锁后不释放，模拟挂掉；另一个读者用更长的租期加锁再释放，key的租期被延长到10秒
+        assertTrue(es.submit(() -> rwLock.readLock().tryLock(0, 2, TimeUnit.SECONDS)).get(10, TimeUnit.SECONDS));
+        assertTrue(rwLock.readLock().tryLock(0, 10, TimeUnit.SECONDS));
+        rwLock.readLock().unlock();
+        //写锁在挂掉的读者到期后就能拿到，不用等key的10秒租期
+        assertTrue(rwLock.writeLock().tryLock(6, 10, TimeUnit.SECONDS));
+        rwLock.writeLock().unlock();
+    }
+
+    @Test
+    void latchReleasesAllWaiters() throws InterruptedException {
+        RedisCountDownLatch redisLatch = redisLockClient.getCountDownLatch("test");
+        int parties = 5;
+        assertTrue(redisLatch.trySetCount(parties, 1, TimeUnit.MINUTES));
+        assertFalse(redisLatch.trySetCount(parties, 1, TimeUnit.MINUTES));
+        //计数没归零时等待超时
+        assertFalse(redisLatch.await(100, TimeUnit.MILLISECONDS));
+
+        int waiters = 4;
+        AtomicInteger released = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(waiters);
+        for (int i = 0; i < waiters; i++) {
+            es.submit(() -> {
+                try {
+                    if (redisLatch.await(10, TimeUnit.SECONDS)) {
+                        released.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < parties; i++) {
+            es.submit(redisLatch::countDown);
+        }
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(waiters, released.get());
+        assertEquals(0, redisLatch.getCount());
+    }
+}
@@ -0,0 +1,48 @@
+package com.hmdp;
+
+import com.hmdp.benchmark.BenchmarkEnvironment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * 跑在进程内redis上的测试的公共夹具：每个测试启动一个新的redis，测试结束后关闭
+ * 子类的@BeforeEach在这里的setUp之后执行，@AfterEach在这里的tearDown之前执行，子类只需要释放自己创建的对象
+ */
+abstract class RedisTestSupport {
+    protected BenchmarkEnvironment environment;
+    protected LettuceConnectionFactory connectionFactory;
+    protected StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+
+    @BeforeEach
+    void setUpRedis() throws Exception {
+        environment = BenchmarkEnvironment.start();
+        connectionFactory = environment.redisConnectionFactory();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterEach
+    void tearDownRedis() throws Exception {
+        if (container != null) {
+            container.destroy();
+        }
+        connectionFactory.destroy();
+        environment.stop();
+    }
+
+    /**
+     * 需要发布订阅的测试调用，容器在tearDown中销毁
+     */
+    protected RedisMessageListenerContainer listenerContainer() {
+        if (container == null) {
+            container = new RedisMessageListenerContainer();
+            container.setConnectionFactory(connectionFactory);
+            container.afterPropertiesSet();
+            container.start();
+        }
+        return container;
+    }
+}
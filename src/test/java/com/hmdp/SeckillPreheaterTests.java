@@ -0,0 +1,109 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillPreheater;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 秒杀预热测试：进行中的秒杀不按MySQL补写库存、只有写入了库存才加载买家和清除售罄标记，
+ * redis跑在进程内，MySQL的订单用mock代替
+ */
+class SeckillPreheaterTests extends RedisTestSupport {
+    private static final Long VOUCHER_ID = 1L;
+
+    private VoucherOrderMapper voucherOrderMapper;
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    private SeckillStockShards seckillStockShards;
+    private SeckillPreheater seckillPreheater;
+
+    @BeforeEach
+    void setUp() {
+        voucherOrderMapper = mock(VoucherOrderMapper.class);
+        when(voucherOrderMapper.selectList(any())).thenReturn(Collections.singletonList(
+                new VoucherOrder().setVoucherId(VOUCHER_ID).setUserId(7L)));
+        IVoucherOrderService voucherOrderService = mock(IVoucherOrderService.class);
+        when(voucherOrderService.query()).thenAnswer(invocation -> new QueryChainWrapper<>(voucherOrderMapper));
+        seckillStockShards = new SeckillStockShards();
+        ReflectionTestUtils.setField(seckillStockShards, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillStockShards, "shards", 1);
+        //不订阅频道，只看本节点的标记
+        seckillSoldOutRegistry = new SeckillSoldOutRegistry();
+        ReflectionTestUtils.setField(seckillSoldOutRegistry, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillSoldOutRegistry, "soldOutTtlMs", 30_000L);
+        seckillPreheater = new SeckillPreheater();
+        ReflectionTestUtils.setField(seckillPreheater, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(seckillPreheater, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillPreheater, "seckillStockShards", seckillStockShards);
+        ReflectionTestUtils.setField(seckillPreheater, "seckillSoldOutRegistry", seckillSoldOutRegistry);
+    }
+
+    @Test
+    void writesStockOnceBeforeTheSaleStarts() {
+        SeckillVoucher voucher = voucher(LocalDateTime.now().plusMinutes(5), 10);
+        seckillSoldOutRegistry.markSoldOut(VOUCHER_ID);
+        //1.库存key不存在：写入库存、加载买家、清除售罄标记
+        seckillPreheater.preheat(Collections.singletonList(voucher));
+        assertEquals("10", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        assertTrue(stringRedisTemplate.opsForSet().isMember(SECKILL_ORDER_KEY + VOUCHER_ID, "7"));
+        assertTrue(stringRedisTemplate.hasKey(SECKILL_WINDOW_KEY + VOUCHER_ID));
+        assertFalse(seckillSoldOutRegistry.isSoldOut(VOUCHER_ID));
+        //2.库存key已经存在：不覆盖库存、不再查买家、不清除售罄标记
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, "0");
+        seckillSoldOutRegistry.markSoldOut(VOUCHER_ID);
+        seckillPreheater.preheat(Collections.singletonList(voucher));
+        assertEquals("0", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        assertTrue(seckillSoldOutRegistry.isSoldOut(VOUCHER_ID));
+        verify(voucherOrderMapper, times(1)).selectList(any());
+    }
+
+    @Test
+    void writesEachMissingShard() {
+        ReflectionTestUtils.setField(seckillStockShards, "shards", 3);
+        stringRedisTemplate.opsForValue().set(seckillStockShards.stockKey(VOUCHER_ID, 0), "4");
+        seckillPreheater.preheat(Collections.singletonList(voucher(LocalDateTime.now().plusMinutes(5), 10)));
+        assertEquals("4", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 0)));
+        assertEquals("3", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 1)));
+        assertEquals("3", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 2)));
+    }
+
+    @Test
+    void doesNotRestoreStockWhileTheSaleIsOpen() {
+        //MySQL库存比redis多出队列中还没落库的订单，进行中的秒杀不按它补写
+        seckillSoldOutRegistry.markSoldOut(VOUCHER_ID);
+        seckillPreheater.preheat(Collections.singletonList(voucher(LocalDateTime.now().minusMinutes(5), 10)));
+        assertNull(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        assertTrue(stringRedisTemplate.hasKey(SECKILL_WINDOW_KEY + VOUCHER_ID));
+        assertTrue(seckillSoldOutRegistry.isSoldOut(VOUCHER_ID));
+        verify(voucherOrderMapper, never()).selectList(any());
+    }
+
+    private static SeckillVoucher voucher(LocalDateTime beginTime, int stock) {
+        return new SeckillVoucher().setVoucherId(VOUCHER_ID).setStock(stock)
+                .setBeginTime(beginTime).setEndTime(beginTime.plusHours(1));
+    }
+}
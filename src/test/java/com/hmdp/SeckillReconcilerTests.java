@@ -0,0 +1,161 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 秒杀对账测试：缺失库存key的补回数量、分片模式下只补缺失的分片、补回后清除售罄标记、两次读之间有订单落库时不修复，
+ * redis跑在进程内，MySQL的库存和订单数用mock代替
+ */
+class SeckillReconcilerTests extends RedisTestSupport {
+    private static final Long VOUCHER_ID = 1L;
+
+    private ISeckillVoucherService seckillVoucherService;
+    private SeckillStockShards seckillStockShards;
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    /**
+     * MySQL中的库存和订单数
+     */
+    private long dbStock;
+    private long dbOrders;
+    /**
+     * 每次查询库存和订单数之后执行，模拟两次读之间落库的订单
+     */
+    private Runnable afterSnapshot = () -> {
+    };
+
+    @BeforeEach
+    void setUp() {
+        seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.listMaps(any())).thenAnswer(invocation -> {
+            Map<String, Object> row = new HashMap<>();
+            row.put("voucher_id", VOUCHER_ID);
+            row.put("stock", dbStock);
+            row.put("orders", dbOrders);
+            afterSnapshot.run();
+            return Collections.singletonList(row);
+        });
+        //SCAN出来的库存key都有对应的秒杀券
+        SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class);
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(new SeckillVoucher().setVoucherId(VOUCHER_ID)));
+        when(seckillVoucherService.query()).thenAnswer(invocation -> new QueryChainWrapper<>(seckillVoucherMapper));
+        seckillStockShards = new SeckillStockShards();
+        ReflectionTestUtils.setField(seckillStockShards, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillStockShards, "shards", 1);
+        //不订阅频道，只看本节点的标记
+        seckillSoldOutRegistry = new SeckillSoldOutRegistry();
+        ReflectionTestUtils.setField(seckillSoldOutRegistry, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillSoldOutRegistry, "soldOutTtlMs", 30_000L);
+    }
+
+    @Test
+    void restoresMissingStockMinusQueuedOrders() {
+        //MySQL库存8、订单2，redis有3个买家，说明还有1单在队列中没有落库
+        db(8, 2);
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + VOUCHER_ID, "1", "2", "3");
+        seckillSoldOutRegistry.markSoldOut(VOUCHER_ID);
+        assertEquals(1, reconciler(true).reconcile());
+        assertEquals("7", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        assertFalse(seckillSoldOutRegistry.isSoldOut(VOUCHER_ID));
+        //补回之后总量守恒，再对账没有差异
+        assertEquals(0, reconciler(true).reconcile());
+    }
+
+    @Test
+    void restoresOnlyMissingShards() {
+        ReflectionTestUtils.setField(seckillStockShards, "shards", 4);
+        //MySQL库存20、订单0，redis有1个买家在队列中；分片0、1还有库存，分片2、3被淘汰
+        db(20, 0);
+        stringRedisTemplate.opsForSet().add(seckillStockShards.orderKey(VOUCHER_ID, seckillStockShards.homeShard(7L)), "7");
+        stringRedisTemplate.opsForValue().set(seckillStockShards.stockKey(VOUCHER_ID, 0), "5");
+        stringRedisTemplate.opsForValue().set(seckillStockShards.stockKey(VOUCHER_ID, 1), "4");
+        seckillSoldOutRegistry.markSoldOut(VOUCHER_ID);
+        assertEquals(1, reconciler(true).reconcile());
+        //20-1-9=10，分到两个缺失的分片上，已有的分片不动
+        assertEquals("5", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 0)));
+        assertEquals("4", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 1)));
+        assertEquals("5", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 2)));
+        assertEquals("5", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 3)));
+        assertFalse(seckillSoldOutRegistry.isSoldOut(VOUCHER_ID));
+        assertEquals(0, reconciler(true).reconcile());
+    }
+
+    @Test
+    void soldOutVoucherStaysSoldOut() {
+        //库存已经在队列里卖完，补回的是0，不清除售罄标记
+        ReflectionTestUtils.setField(seckillStockShards, "shards", 2);
+        db(2, 0);
+        stringRedisTemplate.opsForSet().add(seckillStockShards.orderKey(VOUCHER_ID, 0), "2", "4");
+        stringRedisTemplate.opsForValue().set(seckillStockShards.stockKey(VOUCHER_ID, 0), "0");
+        seckillSoldOutRegistry.markSoldOut(VOUCHER_ID);
+        assertEquals(1, reconciler(true).reconcile());
+        assertEquals("0", stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, 1)));
+        assertTrue(seckillSoldOutRegistry.isSoldOut(VOUCHER_ID));
+    }
+
+    @Test
+    void skipsRepairWhenAnOrderCommitsBetweenReads() {
+        //MySQL库存8、订单2，redis有3个买家，还有1单在队列中
+        db(8, 2);
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + VOUCHER_ID, "1", "2", "3");
+        //第一次读完MySQL之后队列中的订单落库：库存7、订单3
+        afterSnapshot = () -> {
+            afterSnapshot = () -> {
+            };
+            db(7, 3);
+        };
+        assertEquals(0, reconciler(true).reconcile());
+        assertNull(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        //下一轮数据稳定了，按落库之后的库存补回，不会多补
+        assertEquals(1, reconciler(true).reconcile());
+        assertEquals("7", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        assertEquals(0, reconciler(true).reconcile());
+    }
+
+    @Test
+    void onlyReportsWithoutRepair() {
+        db(10, 0);
+        assertEquals(1, reconciler(false).reconcile());
+        assertNull(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+
+    private void db(long stock, long orders) {
+        dbStock = stock;
+        dbOrders = orders;
+    }
+
+    private SeckillReconciler reconciler(boolean repair) {
+        SeckillReconciler reconciler = new SeckillReconciler();
+        ReflectionTestUtils.setField(reconciler, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(reconciler, "voucherOrderService", mock(IVoucherOrderService.class));
+        ReflectionTestUtils.setField(reconciler, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(reconciler, "seckillStockShards", seckillStockShards);
+        ReflectionTestUtils.setField(reconciler, "seckillSoldOutRegistry", seckillSoldOutRegistry);
+        ReflectionTestUtils.setField(reconciler, "pageSize", 200);
+        ReflectionTestUtils.setField(reconciler, "repair", repair);
+        return reconciler;
+    }
+}
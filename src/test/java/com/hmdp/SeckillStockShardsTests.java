@@ -0,0 +1,146 @@
+package com.hmdp;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.utils.SeckillPreheater;
+import com.hmdp.utils.SeckillStockShards;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分片库存的正确性测试：并发下不超卖、一人一单、自己的分片扣完后探测其他分片，跑在进程内redis上
+ * 单key和分片库存的吞吐对比见SeckillBenchmark的stockShards参数
+ */
+class SeckillStockShardsTests extends RedisTestSupport {
+    private static final Long VOUCHER_ID = 1L;
+    private static final int SHARDS = 4;
+    /**
+     * 本地队列模式，不写stream
+     */
+    private static final String NO_STREAM = "";
+
+    private SeckillStockShards seckillStockShards;
+    private ExecutorService es;
+
+    @BeforeEach
+    void setUp() {
+        seckillStockShards = new SeckillStockShards();
+        ReflectionTestUtils.setField(seckillStockShards, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillStockShards, "shards", SHARDS);
+        es = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        es.shutdownNow();
+        es.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void splitsStockAcrossShards() {
+        seckillStockShards.setStock(VOUCHER_ID, 10);
+        //余数分给前面的分片
+        assertEquals(3, stock(0));
+        assertEquals(3, stock(1));
+        assertEquals(2, stock(2));
+        assertEquals(2, stock(3));
+    }
+
+    @Test
+    void concurrentBuyersNeverOversell() throws Exception {
+        int stock = 20;
+        int users = 40;
+        seckillStockShards.setStock(VOUCHER_ID, stock);
+        window(LocalDateTime.now().minusHours(1), LocalDateTime.now().plusHours(1));
+        //每个用户抢两次
+        AtomicInteger orderId = new AtomicInteger();
+        Set<Long> winners = ConcurrentHashMap.newKeySet();
+        AtomicInteger success = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < users * 2; i++) {
+            long userId = i % users + 1;
+            futures.add(es.submit(() -> {
+                int r = seckillStockShards.seckill(VOUCHER_ID, userId, (long) orderId.incrementAndGet(), NO_STREAM);
+                if (r == 0) {
+                    success.incrementAndGet();
+                    assertTrue(winners.add(userId), "用户重复下单：" + userId);
+                } else {
+                    assertTrue(r == 1 || r == 2, "unexpected result " + r);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        //1.正好卖完，每个分片都扣到0
+        assertEquals(stock, success.get());
+        for (int i = 0; i < SHARDS; i++) {
+            assertEquals(0, stock(i));
+        }
+        //2.没抢到的用户归还了占住的名额，集合里只剩买到的用户
+        long buyers = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            buyers += stringRedisTemplate.opsForSet().size(seckillStockShards.orderKey(VOUCHER_ID, i));
+        }
+        assertEquals(stock, buyers);
+    }
+
+    @Test
+    void probesOtherShardsWhenHomeShardIsEmpty() {
+        long userId = 5L;
+        int home = seckillStockShards.homeShard(userId);
+        int other = (home + 1) % SHARDS;
+        window(LocalDateTime.now().minusHours(1), LocalDateTime.now().plusHours(1));
+        for (int i = 0; i < SHARDS; i++) {
+            stringRedisTemplate.opsForValue().set(seckillStockShards.stockKey(VOUCHER_ID, i), i == other ? "1" : "0");
+        }
+        assertEquals(0, seckillStockShards.seckill(VOUCHER_ID, userId, 1L, NO_STREAM));
+        assertEquals(0, stock(other));
+        //名额记在用户所属分片上，再来一次是重复下单
+        assertTrue(stringRedisTemplate.opsForSet().isMember(seckillStockShards.orderKey(VOUCHER_ID, home), String.valueOf(userId)));
+        assertEquals(2, seckillStockShards.seckill(VOUCHER_ID, userId, 2L, NO_STREAM));
+        //所有分片都卖完，其他用户拿不到，也不会占住名额
+        long loser = userId + SHARDS;
+        assertEquals(1, seckillStockShards.seckill(VOUCHER_ID, loser, 3L, NO_STREAM));
+        assertFalse(stringRedisTemplate.opsForSet().isMember(
+                seckillStockShards.orderKey(VOUCHER_ID, seckillStockShards.homeShard(loser)), String.valueOf(loser)));
+    }
+
+    @Test
+    void rejectsOutsideTheWindow() {
+        seckillStockShards.setStock(VOUCHER_ID, 10);
+        window(LocalDateTime.now().plusHours(1), LocalDateTime.now().plusHours(2));
+        assertEquals(4, seckillStockShards.seckill(VOUCHER_ID, 1L, 1L, NO_STREAM));
+        window(LocalDateTime.now().minusHours(2), LocalDateTime.now().minusHours(1));
+        assertEquals(5, seckillStockShards.seckill(VOUCHER_ID, 1L, 2L, NO_STREAM));
+    }
+
+    /**
+     * 写入秒杀时间窗口，和预热、新增秒杀券时一样
+     */
+    private void window(LocalDateTime beginTime, LocalDateTime endTime) {
+        SeckillVoucher voucher = new SeckillVoucher().setVoucherId(VOUCHER_ID).setBeginTime(beginTime).setEndTime(endTime);
+        stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + VOUCHER_ID, SeckillPreheater.window(voucher));
+    }
+
+    private long stock(int shard) {
+        return Long.parseLong(stringRedisTemplate.opsForValue().get(seckillStockShards.stockKey(VOUCHER_ID, shard)));
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.ShopHashCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 按字段存储的店铺缓存测试：字段投影、空值、批量查询、计数原地自增，跑在进程内redis上
+ */
+class ShopHashCacheTests extends RedisTestSupport {
+    private static final String KEY = "cache:shopHash:";
+
+    private ShopHashCache shopHashCache;
+
+    @BeforeEach
+    void setUp() {
+        shopHashCache = new ShopHashCache(stringRedisTemplate);
+    }
+
+    @Test
+    void projectsOnlyRequestedFields() {
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> loader = id -> {
+            loads.incrementAndGet();
+            return shop(id);
+        };
+        //1.未命中时回源，写入全部字段，返回的结果和命中时一样只有需要的字段
+        Shop shop = shopHashCache.query(1L, loader, "name", "sold");
+        assertEquals(new Shop().setId(1L).setName("店铺1").setSold(100), shop);
+        assertEquals(ShopHashCache.toHash(shop(1L)), stringRedisTemplate.<String, String>opsForHash().entries(KEY + 1));
+        //2.命中时只取需要的字段
+        assertEquals(new Shop().setId(1L).setX(120.1).setY(30.1), shopHashCache.query(1L, loader, "x", "y"));
+        //3.不传字段时取全部字段
+        assertEquals(shop(1L), shopHashCache.query(1L, loader));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void cachesMissingShop() {
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> loader = id -> {
+            loads.incrementAndGet();
+            return null;
+        };
+        assertNull(shopHashCache.query(0L, loader, "name"));
+        assertNull(shopHashCache.query(0L, loader, "name"));
+        assertEquals(1, loads.get());
+        //空值上不会自增出残缺的hash
+        assertNull(shopHashCache.increment(0L, "sold", 1));
+        assertFalse(stringRedisTemplate.opsForHash().hasKey(KEY + 0, "sold"));
+    }
+
+    @Test
+    void multiGetKeepsOrderAndLoadsMissesOnce() {
+        shopHashCache.put(Collections.singletonList(shop(1L)));
+        List<Collection<Long>> batches = new ArrayList<>();
+        Function<Collection<Long>, Map<Long, Shop>> loader = ids -> {
+            batches.add(new ArrayList<>(ids));
+            return ids.stream().filter(id -> id > 0).collect(Collectors.toMap(id -> id, ShopHashCacheTests::shop));
+        };
+        List<Shop> shops = shopHashCache.queryMulti(Arrays.asList(3L, 1L, 0L, 2L), loader, "name");
+        assertEquals(Arrays.asList(nameOnly(3L), nameOnly(1L), null, nameOnly(2L)), shops);
+        assertEquals(Collections.singletonList(Arrays.asList(3L, 0L, 2L)), batches);
+        //写回之后全部命中，包括空值
+        shops = shopHashCache.queryMulti(Arrays.asList(0L, 2L, 3L), loader, ShopHashCache.LIST_FIELDS);
+        assertNull(shops.get(0));
+        assertEquals(shop(2L).setOpenHours(null).setCreateTime(null).setUpdateTime(null), shops.get(1));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    void incrementsCounterInPlace() {
+        //没有缓存时不自增，下次读取时从数据库加载
+        assertNull(shopHashCache.increment(1L, "sold", 5));
+        assertFalse(stringRedisTemplate.hasKey(KEY + 1));
+        shopHashCache.put(Collections.singletonList(shop(1L)));
+        assertEquals(105L, shopHashCache.increment(1L, "sold", 5));
+        assertEquals(99L, shopHashCache.increment(1L, "comments", -1));
+        Shop shop = shopHashCache.query(1L, id -> null, "sold", "comments", "name");
+        assertEquals(105, shop.getSold());
+        assertEquals(99, shop.getComments());
+        assertEquals("店铺1", shop.getName());
+        assertTrue(stringRedisTemplate.getExpire(KEY + 1) > 0);
+    }
+
+    private static Shop nameOnly(Long id) {
+        return new Shop().setId(id).setName("店铺" + id);
+    }
+
+    private static Shop shop(Long id) {
+        LocalDateTime time = LocalDateTime.of(2021, 12, 22, 18, 10, 39);
+        return new Shop().setId(id).setName("店铺" + id).setTypeId(1L).setImages("https://img/" + id + ".jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号").setX(120.1).setY(30.1).setAvgPrice(80L)
+                .setSold(100).setComments(100).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(time).setUpdateTime(time);
+    }
+}
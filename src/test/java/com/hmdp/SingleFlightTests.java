@@ -0,0 +1,100 @@
+package com.hmdp;
+
+import com.hmdp.utils.SingleFlight;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 进程内请求合并测试
+ */
+class SingleFlightTests {
+    private static final int THREADS = 16;
+
+    private ExecutorService es;
+
+    @BeforeEach
+    void setUp() {
+        es = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        es.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallsShareOneExecution() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Object result = new Object();
+        List<Future<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(es.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                executions.incrementAndGet();
+                await(release);
+                return result;
+            })));
+        }
+        //等所有线程都进来之后再放行loader
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getShared() < THREADS - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Future<Object> future : futures) {
+            assertSame(result, future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, executions.get());
+        assertEquals(THREADS - 1, singleFlight.getShared());
+        //执行完之后不缓存结果，下一次重新执行
+        singleFlight.execute("cache:shop:1", executions::incrementAndGet);
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    void waitersSeeTheSameException() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(es.submit(() -> singleFlight.execute("cache:shop:2", () -> {
+                await(release);
+                throw new IllegalStateException("db down");
+            })));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getShared() < THREADS - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Future<Object> future : futures) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.benchmark;
+
+import com.github.fppt.jedismock.RedisServer;
+import com.github.fppt.jedismock.datastructures.RMString;
+import com.github.fppt.jedismock.datastructures.Slice;
+import com.github.fppt.jedismock.operations.server.MockExecutor;
+import com.github.fppt.jedismock.server.Response;
+import com.github.fppt.jedismock.server.ServiceOptions;
+import com.github.fppt.jedismock.storage.OperationExecutorState;
+import com.hmdp.HmDianPingApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基准测试的运行环境
+ * 默认在进程内启动一个兼容redis协议的服务（jedis-mock），数据库用MySQL模式的H2，不需要任何外部服务
+ * 指定 -Dredis.host 时改为连接真实redis（-Dredis.port -Dredis.password），用来和进程内的结果对照
+ */
+public class BenchmarkEnvironment {
+    private RedisServer redisServer;
+    private String redisHost;
+    private int redisPort;
+    private String redisPassword;
+
+    /**
+     * 启动redis：没有指定redis.host时启动进程内redis
+     */
+    public static BenchmarkEnvironment start() throws IOException {
+        BenchmarkEnvironment environment = new BenchmarkEnvironment();
+        String host = System.getProperty("redis.host");
+        if (host == null) {
+            environment.redisServer = RedisServer.newRedisServer()
+                    .setOptions(ServiceOptions.withInterceptor(BenchmarkEnvironment::execCommand))
+                    .start();
+            environment.redisHost = environment.redisServer.getHost();
+            environment.redisPort = environment.redisServer.getBindPort();
+            environment.redisPassword = "";
+        } else {
+            environment.redisHost = host;
+            environment.redisPort = Integer.getInteger("redis.port", 6379);
+            environment.redisPassword = System.getProperty("redis.password", "");
+        }
+        return environment;
+    }
+
+    /**
+     * jedis-mock把SETBIT写过的key存成单独的位图类型，GET拿到的是java序列化的对象，SETBIT也会丢掉SET写入的字符串，
+     * 和真实redis（位图就是字符串）不一致；这里把SETBIT/GETBIT改成直接读写字符串，其余命令照常执行
+     */
+    private static Slice execCommand(OperationExecutorState state, String name, List<Slice> params) {
+        boolean setBit = "setbit".equalsIgnoreCase(name);
+        if (!setBit && !"getbit".equalsIgnoreCase(name) || state.isTransactionModeOn()) {
+            return MockExecutor.proceed(state, name, params);
+        }
+        synchronized (state.lock()) {
+            Slice key = params.get(0);
+            long offset = Long.parseLong(params.get(1).toString());
+            Slice value = state.base().getSlice(key);
+            byte[] bytes = value == null ? new byte[0] : value.data();
+            int index = (int) (offset >>> 3);
+            int mask = 0x80 >>> (offset & 7);
+            int old = index < bytes.length && (bytes[index] & mask) != 0 ? 1 : 0;
+            if (setBit) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length, index + 1));
+                bytes[index] = (byte) ("1".equals(params.get(2).toString()) ? bytes[index] | mask : bytes[index] & ~mask);
+                state.base().putValueWithoutClearingTtl(key, RMString.create(bytes));
+            }
+            return Response.integer(old);
+        }
+    }
+
+    /**
+     * 只需要redis的基准测试直接用连接工厂，调用方负责destroy
+     */
+    public LettuceConnectionFactory redisConnectionFactory() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(redisHost, redisPort);
+        configuration.setPassword(redisPassword);
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        return connectionFactory;
+    }
+
+    /**
+     * 需要完整业务bean的基准测试启动整个应用：bench profile（H2 + 关闭定时任务和订单消费者）
+     * 进程内redis没有stream命令，订单改走本节点的内存队列（hmdp.seckill.order.queue=local）；连接真实redis时仍然走stream
+     * @param properties 覆盖bench profile的配置，例如 hmdp.seckill.order.consumers=2
+     */
+    public ConfigurableApplicationContext startApplication(String... properties) {
+        //builder.properties是默认配置，优先级低于application.yaml，redis地址和覆盖项要作为命令行参数传入
+        List<String> args = new ArrayList<>();
+        args.add("--spring.redis.host=" + redisHost);
+        args.add("--spring.redis.port=" + redisPort);
+        args.add("--spring.redis.password=" + redisPassword);
+        args.add("--hmdp.seckill.order.queue=" + (redisServer == null ? "stream" : "local"));
+        for (String property : properties) {
+            args.add("--" + property);
+        }
+        return new SpringApplicationBuilder(HmDianPingApplication.class)
+                .profiles("bench")
+                .run(args.toArray(new String[0]));
+    }
+
+    public void stop() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+}
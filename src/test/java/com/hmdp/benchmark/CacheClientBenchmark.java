@@ -0,0 +1,89 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * CacheClient查询商铺的开销，数据库回源走H2
+ * passThroughHit：缓存命中，一次GET + 解码
+ * passThroughNull：不存在的商铺，布隆过滤器直接拦截，不访问redis（关闭布隆过滤器时是一次GET命中缓存的空值）
+ * logicalExpireHit：逻辑过期未到期，一次GET + 解码，逻辑过期时间在头部
+ * 开启本地缓存时命中的是一级缓存，以上开销都没有
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheClientBenchmark {
+    private static final String LOGICAL_EXPIRE_KEY = "cache:shop:logical:";
+    private BenchmarkEnvironment environment;
+    private ConfigurableApplicationContext context;
+    private CacheClient cacheClient;
+    private IShopService shopService;
+    /**
+     * 是否开启本地一级缓存，对比只走redis的情况
+     */
+    @Param({"true", "false"})
+    private boolean localCache;
+    /**
+     * 缓存值编码方式
+     */
+    @Param({"binary", "json"})
+    private String codec;
+
+    @Setup
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.start();
+        context = environment.startApplication("hmdp.cache.local.enabled=" + localCache, "hmdp.cache.codec=" + codec);
+        cacheClient = context.getBean(CacheClient.class);
+        shopService = context.getBean(IShopService.class);
+        //预先写好缓存：1号商铺正常缓存，0号商铺不存在（缓存空值），2号商铺逻辑过期
+        cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 0L, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        cacheClient.setWithLogicalExpire(LOGICAL_EXPIRE_KEY + 2L, shopService.getById(2L), 1L, TimeUnit.HOURS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        environment.stop();
+    }
+
+    @Benchmark
+    public Shop passThroughHit() {
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop passThroughNull() {
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 0L, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop logicalExpireHit() {
+        return cacheClient.queryWithLogicalExpire(LOGICAL_EXPIRE_KEY, 2L, Shop.class, shopService::getById, 1L, TimeUnit.HOURS);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheClientBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
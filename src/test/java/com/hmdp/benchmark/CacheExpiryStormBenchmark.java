@@ -0,0 +1,147 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 大量热点商铺key同时写入、同时到期时，回源数据库的QPS
+ * passThrough：硬TTL，到期后所有读到这个key的线程都去查数据库
+ * softExpire：软过期+硬过期+TTL抖动+XFetch，到期前后每个key只有一个线程在后台回源
+ * 回源用一个固定耗时的函数模拟MySQL，每轮迭代结束打印这一秒内的回源QPS和10ms窗口内的峰值，
+ * passThrough每隔一个TTL出现一次尖峰，softExpire应当保持平稳
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 12, time = 1)
+@Threads(32)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheExpiryStormBenchmark {
+    private static final String PREFIX = "cache:storm:";
+    private static final int KEYS = 1000;
+    private static final long TTL_SECONDS = 3;
+    private static final long HARD_TTL_SECONDS = 60;
+    private static final long DB_MILLIS = 5;
+
+    @Param({"passThrough", "softExpire"})
+    private String mode;
+
+    private BenchmarkEnvironment environment;
+    private ConfigurableApplicationContext context;
+    private CacheClient cacheClient;
+    private final LongAdder dbQueries = new LongAdder();
+    /**
+     * 按10ms分桶统计回源次数，用来找峰值
+     */
+    private final long[] windows = new long[100];
+    private long iterationStart;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.start();
+        //关闭本地缓存，每次都读redis
+        context = environment.startApplication("hmdp.cache.local.enabled=false");
+        cacheClient = context.getBean(CacheClient.class);
+        //所有key在同一时刻写入
+        for (long id = 0; id < KEYS; id++) {
+            if ("softExpire".equals(mode)) {
+                cacheClient.setWithSoftExpire(PREFIX + id, shop(id), TTL_SECONDS, HARD_TTL_SECONDS, TimeUnit.SECONDS);
+            } else {
+                cacheClient.set(PREFIX + id, shop(id), TTL_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        dbQueries.reset();
+        synchronized (windows) {
+            Arrays.fill(windows, 0);
+        }
+        iterationStart = System.currentTimeMillis();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printIteration() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - iterationStart);
+        long peak = 0;
+        synchronized (windows) {
+            for (long window : windows) {
+                peak = Math.max(peak, window);
+            }
+        }
+        System.out.printf("%n[%s] db qps: %d, peak per 10ms: %d%n", mode, dbQueries.sum() * 1000 / elapsed, peak);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        environment.stop();
+    }
+
+    @Benchmark
+    public Shop read() {
+        long id = ThreadLocalRandom.current().nextLong(KEYS);
+        if ("softExpire".equals(mode)) {
+            return cacheClient.queryWithSoftExpire(PREFIX, id, Shop.class, this::queryDb, TTL_SECONDS, HARD_TTL_SECONDS, TimeUnit.SECONDS);
+        }
+        return cacheClient.queryWithPassThrough(PREFIX, id, Shop.class, this::queryDb, TTL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 模拟一次MySQL主键查询
+     */
+    private Shop queryDb(Long id) {
+        dbQueries.increment();
+        int window = (int) ((System.currentTimeMillis() - iterationStart) / 10);
+        synchronized (windows) {
+            if (window >= 0 && window < windows.length) {
+                windows[window]++;
+            }
+        }
+        try {
+            Thread.sleep(DB_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return shop(id);
+    }
+
+    private static Shop shop(Long id) {
+        return new Shop()
+                .setId(id)
+                .setName("热点商铺" + id)
+                .setTypeId(1L)
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheExpiryStormBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.benchmark;
+
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 统计每个线程发出的redis命令数，opsForXxx和lua脚本最终都走execute(RedisCallback, boolean, boolean)
+ */
+public class CountingRedisTemplate extends StringRedisTemplate {
+    private final ThreadLocal<long[]> commands = ThreadLocal.withInitial(() -> new long[1]);
+
+    public CountingRedisTemplate(RedisConnectionFactory connectionFactory) {
+        super(connectionFactory);
+    }
+
+    @Override
+    public <T> T execute(RedisCallback<T> action, boolean exposeConnection, boolean pipeline) {
+        commands.get()[0]++;
+        return super.execute(action, exposeConnection, pipeline);
+    }
+
+    /**
+     * 当前线程累计发出的命令数
+     */
+    public long commands() {
+        return commands.get()[0];
+    }
+}
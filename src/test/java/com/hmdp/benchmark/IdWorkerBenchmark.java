@@ -0,0 +1,83 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 三种id生成方式的对比：每个id一次INCR、号段租用、雪花算法
+ * 默认跑在进程内redis上，指定 -Dredis.host -Dredis.port -Dredis.password 时连接真实redis，直接运行main方法即可
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdWorkerBenchmark {
+    private BenchmarkEnvironment environment;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIdWorker incrIdWorker;
+    private RedisIdWorker segmentIdWorker;
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    @Setup
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.start();
+        connectionFactory = environment.redisConnectionFactory();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+
+        incrIdWorker = new RedisIdWorker(stringRedisTemplate);
+        ReflectionTestUtils.setField(incrIdWorker, "mode", "incr");
+
+        segmentIdWorker = new RedisIdWorker(stringRedisTemplate);
+        ReflectionTestUtils.setField(segmentIdWorker, "mode", "segment");
+        ReflectionTestUtils.setField(segmentIdWorker, "segmentStep", 1000L);
+        ReflectionTestUtils.setField(segmentIdWorker, "segmentLowWater", 0.2);
+
+        snowflakeIdWorker = new SnowflakeIdWorker(stringRedisTemplate);
+        ReflectionTestUtils.setField(snowflakeIdWorker, "leaseMs", 30000L);
+        ReflectionTestUtils.setField(snowflakeIdWorker, "maxBackwardMs", 10L);
+        snowflakeIdWorker.init();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        snowflakeIdWorker.destroy();
+        connectionFactory.destroy();
+        environment.stop();
+    }
+
+    @Benchmark
+    public Long redisIncr() {
+        return incrIdWorker.nextId("bench");
+    }
+
+    @Benchmark
+    public Long redisSegment() {
+        return segmentIdWorker.nextId("bench");
+    }
+
+    @Benchmark
+    public Long snowflake() {
+        return snowflakeIdWorker.nextId("bench");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(IdWorkerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,102 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.SimpleRedisLock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 多个线程抢同一把锁：SimpleRedisLock每30毫秒重试一次 vs RedisReentrantLock等待释放通知
+ * SampleTime看获取锁+临界区+释放锁的p99，redisCommands是每次操作平均发给redis的命令数
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LockContentionBenchmark {
+    /**
+     * 持有锁的时间，微秒
+     */
+    @Param({"500"})
+    public long criticalMicros;
+
+    private BenchmarkEnvironment environment;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisMessageListenerContainer container;
+    private RedisLockClient redisLockClient;
+    private CountingRedisTemplate stringRedisTemplate;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Commands {
+        public long redisCommands;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            redisCommands = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.start();
+        connectionFactory = environment.redisConnectionFactory();
+        stringRedisTemplate = new CountingRedisTemplate(connectionFactory);
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.afterPropertiesSet();
+        container.start();
+        redisLockClient = new RedisLockClient(stringRedisTemplate, container);
+        redisLockClient.init();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        redisLockClient.destroy();
+        container.destroy();
+        connectionFactory.destroy();
+        environment.stop();
+    }
+
+    @Benchmark
+    public void spinning(Commands commands) throws InterruptedException {
+        run(new SimpleRedisLock("bench:spin", stringRedisTemplate), commands);
+    }
+
+    @Benchmark
+    public void pubSub(Commands commands) throws InterruptedException {
+        run(redisLockClient.getLock("bench:pubsub"), commands);
+    }
+
+    private void run(ILock lock, Commands commands) throws InterruptedException {
+        long before = stringRedisTemplate.commands();
+        if (lock.tryLock(10, 10, TimeUnit.SECONDS)) {
+            try {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(criticalMicros));
+            } finally {
+                lock.unlock();
+            }
+        }
+        commands.redisCommands += stringRedisTemplate.commands() - before;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(LockContentionBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
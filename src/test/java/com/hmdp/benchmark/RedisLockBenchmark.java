@@ -0,0 +1,81 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.SimpleRedisLock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SimpleRedisLock加锁+释放锁的开销
+ * uncontended：每个线程一把锁，只有SET NX和unLock.lua两次往返
+ * contended：所有线程抢同一把锁，抢不到直接返回，统计的是一次尝试的耗时
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedisLockBenchmark {
+    private BenchmarkEnvironment environment;
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate stringRedisTemplate;
+
+    @State(Scope.Thread)
+    public static class ThreadLock {
+        private static final AtomicLong THREAD_INDEX = new AtomicLong();
+        private SimpleRedisLock own;
+        private SimpleRedisLock shared;
+
+        @Setup
+        public void setup(RedisLockBenchmark benchmark) {
+            own = new SimpleRedisLock("bench:" + THREAD_INDEX.incrementAndGet(), benchmark.stringRedisTemplate);
+            shared = new SimpleRedisLock("bench:shared", benchmark.stringRedisTemplate);
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.start();
+        connectionFactory = environment.redisConnectionFactory();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        connectionFactory.destroy();
+        environment.stop();
+    }
+
+    @Benchmark
+    public void uncontended(ThreadLock lock, Blackhole blackhole) {
+        blackhole.consume(lock.own.tryLock(10));
+        lock.own.unlock();
+    }
+
+    @Benchmark
+    public void contended(ThreadLock lock, Blackhole blackhole) {
+        boolean isLock = lock.shared.tryLock(10);
+        blackhole.consume(isLock);
+        if (isLock) {
+            lock.shared.unlock();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisLockBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
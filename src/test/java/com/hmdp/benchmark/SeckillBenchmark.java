@@ -0,0 +1,88 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀入口的基准测试：售罄判断 + id生成 + seckill.lua（校验窗口、库存、一人一单，写stream）
+ * 每次调用换一个用户，库存足够大，测的是下单成功的路径；订单消费者在bench profile中关闭
+ * stockShards对比单key库存和分片库存（seckillShard.lua）
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SeckillBenchmark {
+    private static final AtomicLong USER_ID = new AtomicLong();
+    private BenchmarkEnvironment environment;
+    private ConfigurableApplicationContext context;
+    private IVoucherOrderService voucherOrderService;
+    private Long voucherId;
+    /**
+     * 库存分片数，1表示单key库存
+     */
+    @Param({"1", "8"})
+    private int stockShards;
+
+    @Setup
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.start();
+        context = environment.startApplication("hmdp.seckill.stock-shards=" + stockShards);
+        voucherOrderService = context.getBean(IVoucherOrderService.class);
+        //新增一张正在秒杀中的券，库存写入redis
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("基准测试秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(Integer.MAX_VALUE);
+        voucher.setBeginTime(LocalDateTime.now().minusDays(1));
+        voucher.setEndTime(LocalDateTime.now().plusDays(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        voucherId = voucher.getId();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        environment.stop();
+    }
+
+    @Benchmark
+    public Result seckillVoucher() {
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID.incrementAndGet());
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SeckillBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,141 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.TwoTierLockClient;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 两级锁 vs 只用redis锁
+ * localHit：8个线程都在同一个节点上抢同一把锁，两级锁的竞争留在本地，redis锁在线程之间交接
+ * crossNode：8个线程平均分到两个节点（两套RedisLockClient/TwoTierLockClient），两个节点之间仍然要通过redis互斥
+ * redisCommands是每次操作平均发给redis的命令数
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TwoTierLockBenchmark {
+    /**
+     * 持有锁的时间，微秒
+     */
+    @Param({"100"})
+    public long criticalMicros;
+
+    private BenchmarkEnvironment environment;
+    private LettuceConnectionFactory connectionFactory;
+    private CountingRedisTemplate stringRedisTemplate;
+    private Node[] nodes;
+
+    /**
+     * 模拟一个应用节点：自己的订阅容器、看门狗和本地锁表
+     */
+    private static class Node {
+        private final RedisMessageListenerContainer container;
+        private final RedisLockClient redisLockClient;
+        private final TwoTierLockClient twoTierLockClient;
+
+        private Node(LettuceConnectionFactory connectionFactory, CountingRedisTemplate stringRedisTemplate) {
+            container = new RedisMessageListenerContainer();
+            container.setConnectionFactory(connectionFactory);
+            container.afterPropertiesSet();
+            container.start();
+            redisLockClient = new RedisLockClient(stringRedisTemplate, container);
+            redisLockClient.init();
+            twoTierLockClient = new TwoTierLockClient(redisLockClient);
+        }
+
+        private void destroy() throws Exception {
+            redisLockClient.destroy();
+            container.destroy();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Commands {
+        private static final AtomicInteger THREAD_INDEX = new AtomicInteger();
+        public long redisCommands;
+        private int index;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            index = THREAD_INDEX.getAndIncrement();
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            redisCommands = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.start();
+        connectionFactory = environment.redisConnectionFactory();
+        stringRedisTemplate = new CountingRedisTemplate(connectionFactory);
+        nodes = new Node[]{new Node(connectionFactory, stringRedisTemplate), new Node(connectionFactory, stringRedisTemplate)};
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (Node node : nodes) {
+            node.destroy();
+        }
+        connectionFactory.destroy();
+        environment.stop();
+    }
+
+    @Benchmark
+    public void localHitRedisOnly(Commands commands) throws InterruptedException {
+        run(nodes[0].redisLockClient.getLock("bench:local:redis"), commands);
+    }
+
+    @Benchmark
+    public void localHitTwoTier(Commands commands) throws InterruptedException {
+        run(nodes[0].twoTierLockClient.getLock("bench:local:two-tier"), commands);
+    }
+
+    @Benchmark
+    public void crossNodeRedisOnly(Commands commands) throws InterruptedException {
+        run(nodes[commands.index % 2].redisLockClient.getLock("bench:cross:redis"), commands);
+    }
+
+    @Benchmark
+    public void crossNodeTwoTier(Commands commands) throws InterruptedException {
+        run(nodes[commands.index % 2].twoTierLockClient.getLock("bench:cross:two-tier"), commands);
+    }
+
+    private void run(ILock lock, Commands commands) throws InterruptedException {
+        long before = stringRedisTemplate.commands();
+        if (lock.tryLock(10, -1, TimeUnit.SECONDS)) {
+            try {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(criticalMicros));
+            } finally {
+                lock.unlock();
+            }
+        }
+        commands.redisCommands += stringRedisTemplate.commands() - before;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(TwoTierLockBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
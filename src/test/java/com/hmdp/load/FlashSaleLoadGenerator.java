@@ -0,0 +1,270 @@
+package com.hmdp.load;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.benchmark.BenchmarkEnvironment;
+import com.hmdp.dto.LoginFormDTO;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_CODE_KEY;
+
+/**
+ * 秒杀全链路压测，每次大促前演练用
+ * 1.进程内启动应用（bench profile：进程内redis + H2，订单消费者打开）
+ * 2.通过 /user/code 和 /user/login 登录N个用户，验证码直接从redis里读
+ * 3.按固定到达率请求 /voucher-order/seckill/{id}，每个用户请求attempts次，顺序打乱
+ * 4.记录延迟分布（HdrHistogram）和成功/售罄/重复下单/限流/异常的数量
+ * 5.等订单落库后校验：订单数等于初始库存（用户数少于库存时等于用户数），没有用户买到两次，MySQL库存没有超卖
+ * 延迟从计划发出请求的时刻算起，服务端变慢导致的排队时间也算在内，避免协调遗漏
+ * 运行：mvn -P load test-compile exec:exec -Dload.args="--users=2000 --stock=100 --rate=5000"
+ * 参数：users stock rate（每秒请求数） attempts threads consumers drain-timeout-sec
+ * 校验不通过时进程以1退出，可以直接放进流水线
+ */
+public class FlashSaleLoadGenerator {
+    private final int users;
+    private final int stock;
+    private final int rate;
+    private final int attempts;
+    private final int threads;
+    private final int consumers;
+    private final long drainTimeoutSec;
+
+    private final Histogram latency = new ConcurrentHistogram(3);
+    private final LongAdder success = new LongAdder();
+    private final LongAdder soldOut = new LongAdder();
+    private final LongAdder duplicate = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder error = new LongAdder();
+
+    private ExecutorService executor;
+    private RestTemplate restTemplate;
+    private String baseUrl;
+
+    public FlashSaleLoadGenerator(Map<String, String> options) {
+        this.users = Integer.parseInt(options.getOrDefault("users", "1000"));
+        this.stock = Integer.parseInt(options.getOrDefault("stock", "100"));
+        this.rate = Integer.parseInt(options.getOrDefault("rate", "2000"));
+        this.attempts = Integer.parseInt(options.getOrDefault("attempts", "2"));
+        this.threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+        this.consumers = Integer.parseInt(options.getOrDefault("consumers", "2"));
+        this.drainTimeoutSec = Long.parseLong(options.getOrDefault("drain-timeout-sec", "60"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        //参数格式 --key=value
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(StrUtil.subBetween(arg, "--", "="), StrUtil.subAfter(arg, "=", false));
+            }
+        }
+        boolean passed = new FlashSaleLoadGenerator(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+        BenchmarkEnvironment environment = BenchmarkEnvironment.start();
+        ConfigurableApplicationContext context = environment.startApplication(
+                "hmdp.seckill.order.consumers=" + consumers);
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+            requestFactory.setConnectTimeout(5000);
+            requestFactory.setReadTimeout(5000);
+            restTemplate = new RestTemplate(requestFactory);
+            baseUrl = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port");
+            //1.准备秒杀券和用户
+            Long voucherId = createVoucher(context);
+            List<String> tokens = login(context.getBean(StringRedisTemplate.class));
+            //2.压测
+            fire(voucherId, tokens);
+            report();
+            //3.校验
+            return verify(context, voucherId);
+        } finally {
+            executor.shutdownNow();
+            context.close();
+            environment.stop();
+        }
+    }
+
+    /**
+     * 新增一张正在秒杀中的券
+     */
+    private Long createVoucher(ConfigurableApplicationContext context) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 并发登录所有用户，返回token
+     */
+    private List<String> login(StringRedisTemplate stringRedisTemplate) throws Exception {
+        List<Future<String>> futures = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            String phone = String.format("138%08d", i);
+            futures.add(executor.submit(() -> {
+                restTemplate.postForObject(baseUrl + "/user/code?phone=" + phone, null, Result.class);
+                LoginFormDTO loginForm = new LoginFormDTO();
+                loginForm.setPhone(phone);
+                loginForm.setCode(stringRedisTemplate.opsForValue().get(LOGIN_CODE_KEY + phone));
+                Result result = restTemplate.postForObject(baseUrl + "/user/login", loginForm, Result.class);
+                if (result == null || !Boolean.TRUE.equals(result.getSuccess())) {
+                    throw new IllegalStateException("登录失败：" + phone);
+                }
+                return result.getData().toString();
+            }));
+        }
+        List<String> tokens = new ArrayList<>(users);
+        for (Future<String> future : futures) {
+            tokens.add(future.get());
+        }
+        System.out.printf("登录完成，用户数：%d%n", tokens.size());
+        return tokens;
+    }
+
+    /**
+     * 按固定到达率发出秒杀请求：第i个请求计划在 start + i / rate 秒发出
+     */
+    private void fire(Long voucherId, List<String> tokens) throws InterruptedException {
+        List<String> requests = new ArrayList<>(tokens.size() * attempts);
+        for (int i = 0; i < attempts; i++) {
+            requests.addAll(tokens);
+        }
+        Collections.shuffle(requests, new Random(42));
+        String url = baseUrl + "/voucher-order/seckill/" + voucherId;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        CountDownLatch latch = new CountDownLatch(requests.size());
+        long start = System.nanoTime();
+        for (int i = 0; i < requests.size(); i++) {
+            long intendedStart = start + i * intervalNanos;
+            long wait = intendedStart - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String token = requests.get(i);
+            executor.execute(() -> {
+                try {
+                    HttpHeaders headers = new HttpHeaders();
+                    headers.set("authorization", token);
+                    Result result = restTemplate.postForObject(url, new HttpEntity<>(headers), Result.class);
+                    classify(result);
+                } catch (HttpClientErrorException.TooManyRequests e) {
+                    //被@RateLimit拒绝
+                    limited.increment();
+                } catch (Exception e) {
+                    error.increment();
+                } finally {
+                    latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStart));
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("请求数：%d，耗时：%dms，实际吞吐：%.1f/s%n",
+                requests.size(), elapsedMs, requests.size() * 1000.0 / Math.max(elapsedMs, 1));
+    }
+
+    private void classify(Result result) {
+        if (result == null) {
+            error.increment();
+        } else if (Boolean.TRUE.equals(result.getSuccess())) {
+            success.increment();
+        } else if ("库存不足".equals(result.getErrorMsg())) {
+            soldOut.increment();
+        } else if ("不能重复下单".equals(result.getErrorMsg())) {
+            duplicate.increment();
+        } else {
+            error.increment();
+        }
+    }
+
+    private void report() {
+        System.out.printf("成功：%d，售罄：%d，重复下单：%d，限流：%d，异常：%d%n",
+                success.sum(), soldOut.sum(), duplicate.sum(), limited.sum(), error.sum());
+        System.out.printf("延迟(us) p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), latency.getMaxValue());
+        latency.outputPercentileDistribution(System.out, 1.0);
+    }
+
+    /**
+     * 等订单消费者处理完，再对比MySQL里的订单和库存
+     */
+    private boolean verify(ConfigurableApplicationContext context, Long voucherId) throws InterruptedException {
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        int expected = Math.min(stock, users);
+        //1.订单是异步落库的，等到订单数不再少于成功数或者超时
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(drainTimeoutSec);
+        int created = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        while (created < success.sum() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            created = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        }
+        boolean passed = true;
+        //2.订单数等于初始库存
+        if (created != expected || success.sum() != expected) {
+            System.out.printf("校验失败：期望订单数%d，秒杀成功%d，实际落库%d%n", expected, success.sum(), created);
+            passed = false;
+        }
+        //3.一人一单
+        QueryWrapper<VoucherOrder> duplicatedQuery = new QueryWrapper<VoucherOrder>()
+                .select("user_id", "count(*) AS total")
+                .eq("voucher_id", voucherId)
+                .groupBy("user_id")
+                .having("count(*) > 1");
+        List<Map<String, Object>> duplicated = voucherOrderService.listMaps(duplicatedQuery);
+        if (!duplicated.isEmpty()) {
+            System.out.printf("校验失败：有%d个用户重复下单，例如%s%n", duplicated.size(), duplicated.get(0));
+            passed = false;
+        }
+        //4.MySQL库存没有超卖
+        SeckillVoucher seckillVoucher = context.getBean(ISeckillVoucherService.class).getById(voucherId);
+        if (seckillVoucher.getStock() != stock - created || seckillVoucher.getStock() < 0) {
+            System.out.printf("校验失败：初始库存%d，落库订单%d，剩余库存%d%n", stock, created, seckillVoucher.getStock());
+            passed = false;
+        }
+        System.out.println(passed ? "校验通过" : "校验未通过");
+        return passed;
+    }
+}